@@ -0,0 +1,47 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import at.amartinz.execution.Command;
+import at.amartinz.execution.Shell;
+import at.amartinz.execution.exceptions.RootDeniedException;
+
+/**
+ * A normal shell, which runs the system shell of a desktop Linux instead of the Android one.
+ */
+class BenchmarkShell extends Shell {
+    BenchmarkShell() throws IOException, TimeoutException, RootDeniedException {
+        super("/bin/sh", false);
+    }
+
+    /**
+     * Executes the command the same way as the fireAndBlock methods do.
+     */
+    Command fireAndBlock(Command command) {
+        return fireAndBlockInternal(command, this);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import at.amartinz.execution.Command;
+
+/**
+ * Parsing and collecting a large amount of output lines of a single command.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class LargeOutputBenchmark {
+    @Param({ "10000", "100000" })
+    public int lines;
+
+    @Param({ "OUTPUT_STRING", "OUTPUT_LIST" })
+    public String outputType;
+
+    private BenchmarkShell shell;
+    private String commandLine;
+    private int type;
+
+    @Setup(Level.Trial) public void setUp() throws Exception {
+        shell = new BenchmarkShell();
+        commandLine = "yes 0123456789abcdefghijklmnopqrstuvwxyz | head -n " + lines;
+        type = ("OUTPUT_LIST".equals(outputType) ? Command.OUTPUT_LIST : Command.OUTPUT_STRING);
+    }
+
+    @TearDown(Level.Trial) public void tearDown() {
+        shell.close();
+    }
+
+    @Benchmark public Object collect() {
+        final Command command = new Command(commandLine).setTracked(false).setOutputType(type);
+        shell.fireAndBlock(command);
+        return (type == Command.OUTPUT_LIST ? command.getOutputList() : command.getOutput());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import at.amartinz.execution.Command;
+import at.amartinz.execution.CommandFuture;
+
+/**
+ * Sustained throughput of a single shell, while it always has commands queued.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+    private static final int COMMANDS = 1000;
+
+    private BenchmarkShell shell;
+
+    @Setup(Level.Trial) public void setUp() throws Exception {
+        shell = new BenchmarkShell();
+    }
+
+    @TearDown(Level.Trial) public void tearDown() {
+        shell.close();
+    }
+
+    @Benchmark @OperationsPerInvocation(COMMANDS)
+    public int submit() throws ExecutionException, InterruptedException {
+        final List<CommandFuture> futures = new ArrayList<>(COMMANDS);
+        for (int i = 0; i < COMMANDS; i++) {
+            futures.add(shell.submitCommand(new Command("true").setTracked(false)));
+        }
+        return awaitAll(futures);
+    }
+
+    @Benchmark @OperationsPerInvocation(COMMANDS)
+    public int submitBatch() throws ExecutionException, InterruptedException {
+        final List<Command> commands = new ArrayList<>(COMMANDS);
+        for (int i = 0; i < COMMANDS; i++) {
+            commands.add(new Command("true").setTracked(false));
+        }
+        return awaitAll(shell.submitBatch(commands));
+    }
+
+    private static int awaitAll(List<CommandFuture> futures) throws ExecutionException, InterruptedException {
+        int exitCodes = 0;
+        for (final CommandFuture future : futures) {
+            exitCodes += future.get().getExitCode();
+        }
+        return exitCodes;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * An {@link OutputConsumer} which hands the lines over to another thread via a bounded buffer.
+ * <br>
+ * If the buffer is full, the shell output thread waits until the consuming thread catches up,
+ * so memory stays bounded no matter how much output the command produces.
+ */
+public class BoundedOutputConsumer implements OutputConsumer {
+    private final int capacity;
+    private final ArrayDeque<String> lines;
+
+    private boolean isEnded;
+
+    public BoundedOutputConsumer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity needs to be greater than 0");
+        }
+        this.capacity = capacity;
+        this.lines = new ArrayDeque<>(Math.min(capacity, 1024));
+    }
+
+    @Override public synchronized void onOutputLine(@NonNull String line) {
+        while (!isEnded && lines.size() >= capacity) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (isEnded) {
+            // the command got terminated while we were waiting, nobody is interested anymore
+            return;
+        }
+
+        lines.offer(line);
+        notifyAll();
+    }
+
+    @Override public synchronized void onOutputEnd() {
+        isEnded = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the next line.
+     *
+     * @return The next line or null, if the command finished and all lines got taken
+     */
+    @Nullable public synchronized String take() throws InterruptedException {
+        while (lines.isEmpty()) {
+            if (isEnded) {
+                return null;
+            }
+            wait();
+        }
+
+        final String line = lines.poll();
+        notifyAll();
+        return line;
+    }
+}
@@ -0,0 +1,784 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Command implements CommandListener {
+    private static final String TAG = Command.class.getSimpleName();
+
+    public static final int OUTPUT_NONE = -1;
+    public static final int OUTPUT_ALL = 1;
+    public static final int OUTPUT_STRING = 2;
+    public static final int OUTPUT_STRING_NEWLINE = 3;
+    public static final int OUTPUT_LIST = 4;
+    /**
+     * Raw stdout bytes, length framed by the shell and collected in a {@link ByteBuffer}
+     * without any charset decoding.
+     */
+    public static final int OUTPUT_BINARY = 5;
+    /**
+     * Lines are not collected, but passed on to the {@link OutputConsumer} as they arrive.
+     *
+     * @see #setOutputConsumer(OutputConsumer)
+     */
+    public static final int OUTPUT_STREAM = 6;
+
+    /**
+     * Error output is handled like normal output, this is the default.
+     */
+    public static final int ERROR_MERGE = 1;
+    /**
+     * Error output is collected separately, see {@link #getErrorOutput()}.
+     */
+    public static final int ERROR_SEPARATE = 2;
+    /**
+     * Error output is dropped.
+     */
+    public static final int ERROR_NONE = 3;
+
+    /**
+     * User facing commands, always written to the shell before any other pending command.
+     */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /**
+     * The default priority.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * Background work, only written if no other command is pending or if it waited for too long.
+     */
+    public static final int PRIORITY_BULK = 2;
+
+    public int id;
+    public int exitCode;
+
+    private final int timeout;
+
+    private boolean isExecuting;
+    private boolean isFinished;
+    private boolean isTerminated;
+    // incremented on every execution, so stale timeouts of a reused command can be told apart
+    private int generation;
+    private String terminationReason;
+
+    private long submitTime;
+    private long startTime;
+    // only taken while metrics are enabled
+    private long firstOutputTime;
+    private long finishTime;
+
+    private CommandFuture future;
+    private TimeoutWheel.Entry timeoutEntry;
+    private boolean isIdempotent;
+    private int priority = PRIORITY_NORMAL;
+    private boolean isTracked;
+    private long cacheTtl;
+    // the shell executing the command and the pid of its subshell, to kill it on cancellation
+    private Shell shell;
+    private int pid;
+    private boolean isKillRequested;
+    // set while the command is queued as part of a batch, only touched by the shell
+    /* package */ Command nextInBatch;
+
+    public int totalOutput;
+    public int totalOutputProcessed;
+
+    private String[] commands;
+
+    private int outputType = OUTPUT_NONE;
+    private StringBuilder outputBuilder;
+    private List<String> outputList;
+    private ByteBuffer outputBuffer;
+    // whether the shell sent the binary frame of the current execution
+    private boolean isBinaryStarted;
+    private boolean useDirectBuffer;
+    private OutputConsumer outputConsumer;
+
+    private int errorType = ERROR_MERGE;
+    private StringBuilder errorBuilder;
+
+    // stdout and stderr are read independently, the command is finished once both saw their marker
+    private boolean isOutputFinished;
+    private boolean isErrorFinished;
+
+    public Command(String... commands) {
+        this(0, Shell.DEFAULT_TIMEOUT, commands);
+    }
+
+    public Command(int id, String... commands) {
+        this(id, Shell.DEFAULT_TIMEOUT, commands);
+    }
+
+    public Command(int id, int timeout, String... commands) {
+        this.id = id;
+        this.timeout = timeout;
+        this.commands = commands;
+    }
+
+    public final String[] getCommands() {
+        if (commands == null || commands.length == 0) {
+            throw new RuntimeException("No commands?");
+        }
+        return commands;
+    }
+
+    public Command waitFor() {
+        while (!isFinished()) {
+            synchronized (this) {
+                try {
+                    wait(timeout);
+                } catch (Exception ignored) { }
+            }
+
+            if (!isFinished() && !isExecuting()) {
+                if (ShellLogger.RAMPAGE) {
+                    throw new RuntimeException("Something is really wrong");
+                }
+            }
+        }
+        return this;
+    }
+
+    public synchronized final boolean isExecuting() {
+        return this.isExecuting;
+    }
+
+    public synchronized final boolean isFinished() {
+        return this.isFinished;
+    }
+
+    public synchronized final boolean isTerminated() {
+        return this.isTerminated;
+    }
+
+    public synchronized Command setOutputType(int outputType) {
+        this.outputType = outputType;
+        switch (this.outputType) {
+            default:
+            case OUTPUT_NONE: {
+                outputBuilder = null;
+                outputList = null;
+                break;
+            }
+            case OUTPUT_ALL: {
+                outputBuilder = new StringBuilder();
+                outputList = new ArrayList<>();
+                break;
+            }
+            case OUTPUT_STRING:
+            case OUTPUT_STRING_NEWLINE: {
+                outputBuilder = new StringBuilder();
+                outputList = null;
+                break;
+            }
+            case OUTPUT_LIST: {
+                outputBuilder = null;
+                outputList = new ArrayList<>();
+                break;
+            }
+            case OUTPUT_BINARY:
+            case OUTPUT_STREAM: {
+                outputBuilder = null;
+                outputList = null;
+                break;
+            }
+        }
+        outputBuffer = null;
+        if (this.outputType != OUTPUT_STREAM) {
+            outputConsumer = null;
+        }
+        return this;
+    }
+
+    /**
+     * @param errorType One of {@link #ERROR_MERGE}, {@link #ERROR_SEPARATE} or {@link #ERROR_NONE}
+     */
+    public synchronized Command setErrorType(int errorType) {
+        this.errorType = errorType;
+        this.errorBuilder = (errorType == ERROR_SEPARATE ? new StringBuilder() : null);
+        return this;
+    }
+
+    public synchronized final int getErrorType() {
+        return errorType;
+    }
+
+    /**
+     * Streams the output to the consumer instead of collecting it, sets the output type to {@link #OUTPUT_STREAM}.
+     */
+    public synchronized Command setOutputConsumer(@Nullable OutputConsumer outputConsumer) {
+        setOutputType(outputConsumer != null ? OUTPUT_STREAM : OUTPUT_NONE);
+        this.outputConsumer = outputConsumer;
+        return this;
+    }
+
+    public synchronized final int getOutputType() {
+        return outputType;
+    }
+
+    /**
+     * @param useDirectBuffer Whether {@link #OUTPUT_BINARY} output should be collected in a direct buffer
+     */
+    public synchronized Command setUseDirectBuffer(boolean useDirectBuffer) {
+        this.useDirectBuffer = useDirectBuffer;
+        return this;
+    }
+
+    /* package */ synchronized final void startBinaryOutput(long length) {
+        markFirstOutput();
+        isBinaryStarted = true;
+        if (length > Integer.MAX_VALUE) {
+            outputBuffer = null;
+            return;
+        }
+        outputBuffer = (useDirectBuffer ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length));
+    }
+
+    /* package */ synchronized final void appendBinaryOutput(byte[] buffer, int offset, int length) {
+        if (outputBuffer != null) {
+            outputBuffer.put(buffer, offset, length);
+        }
+    }
+
+    /**
+     * @return Whether this is a {@link #OUTPUT_BINARY} command, for which the shell did not send any output frame
+     */
+    /* package */ synchronized final boolean isMissingBinaryOutput() {
+        return outputType == OUTPUT_BINARY && !isBinaryStarted;
+    }
+
+    /* package */ synchronized final void finishBinaryOutput() {
+        if (outputBuffer != null) {
+            outputBuffer.flip();
+        }
+    }
+
+    public synchronized final int getExitCode() {
+        return this.exitCode;
+    }
+
+    protected final void setExitCode(int code) {
+        synchronized (this) {
+            exitCode = code;
+        }
+    }
+
+    /**
+     * @return Whether output lines need to be passed to {@link #onCommandOutput(int, String)}.
+     * Lines of commands without an output type are only decoded if a subclass may be interested in them.
+     */
+    protected boolean wantsOutput() {
+        return outputType != OUTPUT_NONE || getClass() != Command.class;
+    }
+
+    /**
+     * @return Whether error lines need to be passed on at all
+     */
+    protected boolean wantsErrorOutput() {
+        switch (errorType) {
+            case ERROR_MERGE: {
+                return wantsOutput();
+            }
+            case ERROR_SEPARATE: {
+                return true;
+            }
+            default: {
+                return getClass() != Command.class;
+            }
+        }
+    }
+
+    protected final void doErrorOutput(int id, String line) {
+        final boolean isMerged;
+        synchronized (this) {
+            isMerged = (errorType == ERROR_MERGE);
+            if (!isMerged) {
+                markFirstOutput();
+                onCommandErrorOutput(id, line);
+            }
+        }
+
+        if (isMerged) {
+            doOutput(id, line);
+        }
+    }
+
+    /**
+     * Marks stdout or stderr of the current execution as fully read.
+     *
+     * @return true if both are done and the command can be finished
+     */
+    /* package */ synchronized final boolean onStreamFinished(boolean isOutput) {
+        if (isOutput) {
+            isOutputFinished = true;
+        } else {
+            isErrorFinished = true;
+        }
+        return isOutputFinished && isErrorFinished;
+    }
+
+    protected final void doOutput(int id, String line) {
+        final OutputConsumer consumer;
+        synchronized (this) {
+            markFirstOutput();
+            totalOutput++;
+            onCommandOutput(id, line);
+            consumer = outputConsumer;
+        }
+
+        // outside of the lock, the consumer may block until it caught up
+        if (consumer != null) {
+            consumer.onOutputLine(line);
+        }
+    }
+
+    private void markFirstOutput() {
+        if (firstOutputTime == 0 && ShellMetrics.isEnabled()) {
+            firstOutputTime = System.nanoTime();
+        }
+    }
+
+    public synchronized final void resetCommand() {
+        this.isFinished = false;
+        this.totalOutput = 0;
+        this.totalOutputProcessed = 0;
+        this.isExecuting = false;
+        this.isTerminated = false;
+        this.terminationReason = null;
+        this.exitCode = -1;
+        this.outputBuffer = null;
+        this.isBinaryStarted = false;
+        this.isOutputFinished = false;
+        this.isErrorFinished = false;
+        if (this.errorBuilder != null) {
+            this.errorBuilder.setLength(0);
+        }
+        this.submitTime = System.nanoTime();
+        this.startTime = 0;
+        this.firstOutputTime = 0;
+        this.finishTime = 0;
+        this.future = null;
+        this.shell = null;
+        this.pid = 0;
+        this.isKillRequested = false;
+    }
+
+    /**
+     * Drops everything collected by an interrupted execution, before the command gets executed again.
+     */
+    /* package */ synchronized final void clearOutput() {
+        if (outputBuilder != null) {
+            outputBuilder.setLength(0);
+        }
+        if (outputList != null) {
+            outputList.clear();
+        }
+        outputBuffer = null;
+        isBinaryStarted = false;
+        totalOutput = 0;
+        totalOutputProcessed = 0;
+    }
+
+    /* package */ synchronized final void setFuture(CommandFuture future) {
+        this.future = future;
+    }
+
+    /* package */ synchronized final CommandFuture getFuture() {
+        return future;
+    }
+
+    /**
+     * @param isIdempotent Whether the command can safely run again, if its shell died while executing it.
+     *                     The output of the interrupted execution is dropped. Commands with
+     *                     {@link #OUTPUT_STREAM} are only run again, if they did not start yet.
+     */
+    public synchronized Command setIdempotent(boolean isIdempotent) {
+        this.isIdempotent = isIdempotent;
+        return this;
+    }
+
+    public synchronized final boolean isIdempotent() {
+        return isIdempotent;
+    }
+
+    /**
+     * @param priority One of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_BULK}
+     */
+    public synchronized Command setPriority(int priority) {
+        if (priority < PRIORITY_INTERACTIVE || priority > PRIORITY_BULK) {
+            throw new IllegalArgumentException("Unknown priority: " + priority);
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    public synchronized final int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Tracked commands are executed in their own subshell, which gets killed if the command gets
+     * cancelled or times out, so the shell can go on with the next command. Untracked commands,
+     * the default, only get terminated and keep the shell busy until they finished on their own.
+     * <br>
+     * As a subshell can not modify its parent, changes to the state of the shell, like its working
+     * directory or environment, do not carry over to the next command once tracking is enabled.
+     * Tracking also costs an additional fork per command.
+     */
+    public synchronized Command setTracked(boolean isTracked) {
+        this.isTracked = isTracked;
+        return this;
+    }
+
+    public synchronized final boolean isTracked() {
+        return isTracked;
+    }
+
+    /**
+     * Successful results of the command get cached in the {@link ResultCache} for the given time
+     * and are shared by every command with the same text, output type and error type on the same
+     * kind of shell. Only meant for read-only commands, like {@code getprop} or reading a file.
+     * <br>
+     * Subclasses, batches and commands with {@link #OUTPUT_BINARY} or {@link #OUTPUT_STREAM} are never
+     * answered from the cache.
+     *
+     * @param cacheTtl The time to live of a cached result in milliseconds, 0 disables caching
+     */
+    public synchronized Command setCacheTtl(long cacheTtl) {
+        if (cacheTtl < 0) {
+            throw new IllegalArgumentException("cacheTtl must not be negative: " + cacheTtl);
+        }
+        this.cacheTtl = cacheTtl;
+        return this;
+    }
+
+    public synchronized final long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /* package */ synchronized final boolean isCacheable() {
+        return cacheTtl > 0 && getClass() == Command.class && outputType != OUTPUT_BINARY && outputType != OUTPUT_STREAM;
+    }
+
+    protected final void commandFinished() {
+        if (!isTerminated()) {
+            synchronized (this) {
+                onCommandCompleted(id, exitCode);
+
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.v(TAG, String.format("finished command with id \"%s\"", id));
+                }
+                finishCommand();
+            }
+            storeResult();
+            recordMetrics();
+            notifyOutputEnd();
+            completeFuture();
+        }
+    }
+
+    private synchronized void storeResult() {
+        if (exitCode != 0 || shell == null || !isCacheable()) {
+            return;
+        }
+        ResultCache.get().store(this, shell.isRoot, cacheTtl, exitCode,
+                (outputBuilder != null ? outputBuilder.toString() : null), outputList,
+                (errorBuilder != null ? errorBuilder.toString() : null));
+    }
+
+    /**
+     * Finishes the command with a cached result, without it ever reaching the shell.
+     */
+    /* package */ final void completeFromCache(ResultCache.CachedResult cached) {
+        synchronized (this) {
+            if (outputBuilder != null && cached.output != null) {
+                outputBuilder.append(cached.output);
+            }
+            if (outputList != null && cached.outputList != null) {
+                outputList.addAll(cached.outputList);
+            }
+            if (errorBuilder != null && cached.errorOutput != null) {
+                errorBuilder.append(cached.errorOutput);
+            }
+            exitCode = cached.exitCode;
+            startTime = submitTime;
+            finishCommand();
+        }
+        completeFuture();
+    }
+
+    protected final void finishCommand() {
+        synchronized (this) {
+            isExecuting = false;
+            isFinished = true;
+            finishTime = System.nanoTime();
+            if (timeoutEntry != null) {
+                timeoutEntry.release();
+                timeoutEntry = null;
+            }
+            this.notifyAll();
+        }
+    }
+
+    public final void terminate(String reason) {
+        synchronized (this) {
+            markTerminated(reason);
+        }
+        notifyTerminated();
+    }
+
+    /**
+     * Needs to be called with the lock of the command held, followed by {@link #notifyTerminated()}
+     * once the lock is released.
+     */
+    private void markTerminated(String reason) {
+        onCommandTerminated(id, reason);
+
+        if (ShellLogger.DEBUG) {
+            ShellLogger.w(TAG, String.format("command \"%s\" did not finish because it was terminated!\n%s", id, reason));
+        }
+        setExitCode(-1);
+        isTerminated = true;
+        terminationReason = reason;
+        finishCommand();
+    }
+
+    // outside of the lock, consumers and callbacks may block or touch this command from other threads
+    private void notifyTerminated() {
+        recordMetrics();
+        notifyOutputEnd();
+        completeFuture();
+    }
+
+    private void recordMetrics() {
+        if (!ShellMetrics.isEnabled()) {
+            return;
+        }
+
+        final Shell currentShell;
+        final boolean terminated;
+        final long submitted, started, firstOutput, finished;
+        synchronized (this) {
+            currentShell = shell;
+            terminated = isTerminated;
+            submitted = submitTime;
+            started = startTime;
+            firstOutput = firstOutputTime;
+            finished = finishTime;
+        }
+        if (currentShell != null) {
+            currentShell.getShellMetrics().onCommandFinished(terminated, submitted, started, firstOutput, finished);
+        }
+    }
+
+    private void notifyOutputEnd() {
+        final OutputConsumer consumer;
+        synchronized (this) {
+            consumer = outputConsumer;
+        }
+        if (consumer != null) {
+            consumer.onOutputEnd();
+        }
+    }
+
+    private void completeFuture() {
+        final CommandFuture currentFuture;
+        final CommandResult result;
+        synchronized (this) {
+            currentFuture = future;
+            if (currentFuture == null) {
+                return;
+            }
+            result = createResult();
+        }
+        // complete outside of the lock, callbacks may touch this command from other threads
+        currentFuture.complete(result);
+    }
+
+    /**
+     * @return An immutable snapshot of the current state of this command
+     */
+    public synchronized CommandResult createResult() {
+        final List<String> listSnapshot = (outputList != null ? new ArrayList<>(outputList) : null);
+        final ByteBuffer bufferSnapshot = (outputBuffer != null ? outputBuffer.asReadOnlyBuffer() : null);
+        return new CommandResult(id, exitCode, getOutput(), listSnapshot, bufferSnapshot, getErrorOutput(),
+                isTerminated, terminationReason, submitTime, startTime, finishTime);
+    }
+
+    /**
+     * Terminates the command and kills its subshell, if it is tracked and still executing.
+     *
+     * @return false, if the command already finished
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (isFinished) {
+                return false;
+            }
+            markTerminated("Cancelled");
+        }
+        notifyTerminated();
+        killProcess();
+        return true;
+    }
+
+    private void killProcess() {
+        final Shell currentShell;
+        final int currentPid;
+        synchronized (this) {
+            isKillRequested = true;
+            currentShell = shell;
+            currentPid = pid;
+        }
+        // if the pid is not known yet, the kill happens once it gets reported
+        if (currentShell != null && currentPid > 0) {
+            currentShell.killProcess(currentPid);
+        }
+    }
+
+    /* package */ final void onProcessStarted(int pid) {
+        final Shell currentShell;
+        synchronized (this) {
+            this.pid = pid;
+            currentShell = (isKillRequested ? shell : null);
+        }
+        if (currentShell != null) {
+            currentShell.killProcess(pid);
+        }
+    }
+
+    /* package */ synchronized final void setShell(Shell shell) {
+        this.shell = shell;
+    }
+
+    protected final void startExecution() {
+        final int currentGeneration;
+        synchronized (this) {
+            isExecuting = true;
+            startTime = System.nanoTime();
+            currentGeneration = ++generation;
+        }
+
+        if (timeout > 0) {
+            final TimeoutWheel.Entry entry = TimeoutWheel.get().schedule(this, currentGeneration, timeout);
+            synchronized (this) {
+                if (isFinished || currentGeneration != generation) {
+                    entry.release();
+                } else {
+                    timeoutEntry = entry;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the command as timed out, called by the timeout wheel.
+     *
+     * @return true, if {@link #onTerminatedByTimeout()} needs to be called
+     */
+    /* package */ final boolean onTimeout(int timeoutGeneration) {
+        synchronized (this) {
+            if (timeoutGeneration != generation || isFinished) {
+                return false;
+            }
+            if (shell != null && ShellMetrics.isEnabled()) {
+                shell.getShellMetrics().onTimeout();
+            }
+            markTerminated("Timeout exception");
+        }
+        return true;
+    }
+
+    /* package */ final void onTerminatedByTimeout() {
+        notifyTerminated();
+        killProcess();
+    }
+
+    @Override public void onCommandCompleted(int id, int exitCode) {
+        // needs to be overwritten to implement
+        setExitCode(exitCode);
+    }
+
+    @Override public void onCommandTerminated(int id, String reason) {
+        // needs to be overwritten to implement
+        if (ShellLogger.DEBUG) {
+            ShellLogger.v(TAG, String.format("terminated command with id \"%s\": %s", id, reason));
+        }
+    }
+
+    @Override public void onCommandOutput(int id, String line) {
+        // needs to be overwritten to implement
+        // WARNING: do not forget to call super!
+        if (outputBuilder != null) {
+            outputBuilder.append(line);
+            if (outputType == OUTPUT_STRING_NEWLINE) {
+                outputBuilder.append('\n');
+            }
+        }
+        if (outputList != null) {
+            outputList.add(line);
+        }
+        totalOutputProcessed++;
+    }
+
+    /**
+     * Called for every line of error output, if the error type is not {@link #ERROR_MERGE}.
+     * Gets invoked on the thread reading stderr, which is not the one reading stdout.
+     */
+    public void onCommandErrorOutput(int id, String line) {
+        // needs to be overwritten to implement
+        if (errorBuilder != null) {
+            errorBuilder.append(line).append('\n');
+        }
+    }
+
+    @Nullable public String getOutput() {
+        return (outputBuilder != null ? outputBuilder.toString().trim() : null);
+    }
+
+    @Nullable public List<String> getOutputList() {
+        return outputList;
+    }
+
+    /**
+     * @return The error output of a command with {@link #ERROR_SEPARATE}
+     */
+    @Nullable public synchronized String getErrorOutput() {
+        return (errorBuilder != null ? errorBuilder.toString().trim() : null);
+    }
+
+    /**
+     * @return The raw output of a command with {@link #OUTPUT_BINARY}, ready to be read
+     */
+    @Nullable public synchronized ByteBuffer getOutputBuffer() {
+        return outputBuffer;
+    }
+
+}
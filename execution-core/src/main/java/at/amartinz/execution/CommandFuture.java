@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} which gets completed with the {@link CommandResult} of a submitted
+ * {@link Command}, on the thread which parses the shell output.
+ * <br>
+ * Callbacks run on the completing thread and should not block, as they delay the output
+ * processing of all following commands on the same shell.
+ */
+public class CommandFuture implements Future<CommandResult> {
+    public interface Callback {
+        void onCommandResult(@NonNull CommandResult result);
+    }
+
+    private final Command command;
+
+    private CommandResult result;
+    private boolean isCancelled;
+    // set while cancel() finds out whether it got to the command before its result
+    private boolean isCancelling;
+    private List<Callback> callbacks;
+
+    /* package */ CommandFuture(Command command) {
+        this.command = command;
+    }
+
+    @NonNull public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Adds a callback which gets invoked once the command finished or got terminated.
+     * If the command already finished, the callback gets invoked right away on the calling thread.
+     */
+    @NonNull public CommandFuture addCallback(@NonNull Callback callback) {
+        final CommandResult currentResult;
+        synchronized (this) {
+            if (result == null) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>(1);
+                }
+                callbacks.add(callback);
+                return this;
+            }
+            currentResult = result;
+        }
+        callback.onCommandResult(currentResult);
+        return this;
+    }
+
+    /* package */ boolean complete(@NonNull CommandResult commandResult) {
+        final List<Callback> toNotify;
+        synchronized (this) {
+            if (result != null) {
+                return false;
+            }
+            result = commandResult;
+            toNotify = callbacks;
+            callbacks = null;
+            notifyAll();
+        }
+
+        if (toNotify != null) {
+            for (final Callback callback : toNotify) {
+                callback.onCommandResult(commandResult);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cancelling terminates the command and kills its subshell, if it did not finish yet.
+     * A command which already finished keeps its result, even if the result is still on its way.
+     */
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (result != null || isCancelling) {
+                return false;
+            }
+            isCancelling = true;
+        }
+
+        // completes this future with the terminated result, unless the command finished already
+        final boolean isCommandCancelled = command.cancel();
+        synchronized (this) {
+            isCancelling = false;
+            isCancelled = isCommandCancelled;
+            notifyAll();
+        }
+        return isCommandCancelled;
+    }
+
+    @Override public synchronized boolean isCancelled() {
+        return isCancelled;
+    }
+
+    @Override public synchronized boolean isDone() {
+        return result != null && !isCancelling;
+    }
+
+    @Override public synchronized CommandResult get() throws InterruptedException {
+        while (result == null || isCancelling) {
+            wait();
+        }
+        if (isCancelled) {
+            throw new CancellationException();
+        }
+        return result;
+    }
+
+    @Override public synchronized CommandResult get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (result == null || isCancelling) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (isCancelled) {
+            throw new CancellationException();
+        }
+        return result;
+    }
+}
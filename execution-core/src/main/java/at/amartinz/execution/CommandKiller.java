@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills the subshells of cancelled or timed out commands, so the shell executing them can go on.
+ * <br>
+ * The shell itself is blocked while waiting for the subshell, so the kill gets sent by a separate
+ * shell of the same kind. It is started on the first kill and kept around, so root access only gets
+ * requested once. All kills are done one after another on a single thread, which exits while there
+ * is nothing to kill.
+ */
+/* package */ class CommandKiller {
+    private static final String TAG = CommandKiller.class.getSimpleName();
+
+    private static final String DONE_MARKER = "__execution_killed";
+
+    private static final CommandKiller sInstance = new CommandKiller();
+
+    private final ExecutorService executor;
+    // the killer shells per executable, guarded by the lock of the killer
+    private final HashMap<String, KillerShell> shells = new HashMap<>();
+
+    private CommandKiller() {
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                return ExecutionThreads.newThread(runnable, "Shell command killer", true);
+            }
+        };
+        executor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    public static CommandKiller get() {
+        return sInstance;
+    }
+
+    /**
+     * Kills the process with the given pid and its direct children, without blocking.
+     *
+     * @param executable The executable of the shell, which started the process
+     */
+    public void kill(final String executable, final int pid) {
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                killBlocking(executable, pid);
+            }
+        });
+    }
+
+    /**
+     * Closes all killer shells, they get started again on the next kill.
+     */
+    public synchronized void closeShells() {
+        for (final KillerShell shell : shells.values()) {
+            shell.close();
+        }
+        shells.clear();
+    }
+
+    private synchronized void killBlocking(String executable, int pid) {
+        // stop it first, so it can not spawn new children while we kill the existing ones
+        final String script = String.format("kill -STOP %1$s; " +
+                "pkill -9 -P %1$s || for f in /proc/[0-9]*/stat; do " +
+                "read p c st pp r < $f && [ \"$pp\" = \"%1$s\" ] && kill -9 $p; done; " +
+                "kill -9 %1$s; echo %2$s\n", pid, DONE_MARKER);
+
+        // a killer shell may have died since its last kill, retry once with a new one
+        for (int attempt = 0; attempt < 2; attempt++) {
+            KillerShell shell = shells.get(executable);
+            try {
+                if (shell == null) {
+                    shell = new KillerShell(executable);
+                    shells.put(executable, shell);
+                }
+                shell.execute(script);
+                return;
+            } catch (IOException ioe) {
+                if (shell != null) {
+                    shell.close();
+                }
+                shells.remove(executable);
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, String.format("Could not kill process %s", pid), ioe);
+                }
+            }
+        }
+    }
+
+    private static class KillerShell {
+        private final Process process;
+        private final OutputStream outputStream;
+        private final BufferedReader reader;
+
+        private KillerShell(String executable) throws IOException {
+            // errors are read and skipped together with the output, so they can not fill up a pipe
+            process = new ProcessBuilder(executable.split("\\s+")).redirectErrorStream(true).start();
+            outputStream = process.getOutputStream();
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream(), IoUtils.UTF_8));
+        }
+
+        /**
+         * Runs the script and blocks until it is done.
+         */
+        private void execute(String script) throws IOException {
+            outputStream.write(script.getBytes(IoUtils.UTF_8));
+            outputStream.flush();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (DONE_MARKER.equals(line)) {
+                    return;
+                }
+            }
+            throw new IOException("Killer shell died");
+        }
+
+        private void close() {
+            IoUtils.closeQuietly(outputStream);
+            IoUtils.closeQuietly(reader);
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of a finished or terminated {@link Command}.
+ * <br>
+ * All timings are in nanoseconds and taken via {@link System#nanoTime()}.
+ */
+public class CommandResult {
+    public final int id;
+    public final int exitCode;
+
+    private final String output;
+    private final List<String> outputList;
+    private final ByteBuffer outputBuffer;
+    private final String errorOutput;
+
+    private final boolean isTerminated;
+    private final String terminationReason;
+
+    private final long submitTime;
+    private final long startTime;
+    private final long finishTime;
+
+    /* package */ CommandResult(int id, int exitCode, @Nullable String output, @Nullable List<String> outputList,
+            @Nullable ByteBuffer outputBuffer, @Nullable String errorOutput, boolean isTerminated, @Nullable String terminationReason,
+            long submitTime, long startTime, long finishTime) {
+        this.id = id;
+        this.exitCode = exitCode;
+        this.output = output;
+        this.outputList = (outputList != null ? Collections.unmodifiableList(outputList) : null);
+        this.outputBuffer = outputBuffer;
+        this.errorOutput = errorOutput;
+        this.isTerminated = isTerminated;
+        this.terminationReason = terminationReason;
+        this.submitTime = submitTime;
+        this.startTime = startTime;
+        this.finishTime = finishTime;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return true if the command finished with an exit code of 0 and did not get terminated
+     */
+    public boolean isSuccess() {
+        return !isTerminated && exitCode == 0;
+    }
+
+    @Nullable public String getOutput() {
+        return output;
+    }
+
+    @Nullable public List<String> getOutputList() {
+        return outputList;
+    }
+
+    /**
+     * @return A read only view of the output of a command with {@link Command#OUTPUT_BINARY}
+     */
+    @Nullable public ByteBuffer getOutputBuffer() {
+        return (outputBuffer != null ? outputBuffer.duplicate() : null);
+    }
+
+    /**
+     * @return The error output of a command with {@link Command#ERROR_SEPARATE}
+     */
+    @Nullable public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    public boolean isTerminated() {
+        return isTerminated;
+    }
+
+    @Nullable public String getTerminationReason() {
+        return terminationReason;
+    }
+
+    /**
+     * @return The time the command spent waiting in the queue before it got written to the shell
+     */
+    public long getQueueTime() {
+        return (startTime != 0 ? startTime - submitTime : finishTime - submitTime);
+    }
+
+    /**
+     * @return The time between writing the command to the shell and finishing it
+     */
+    public long getExecutionTime() {
+        return (startTime != 0 ? finishTime - startTime : 0);
+    }
+
+    /**
+     * @return The time between submitting and finishing the command
+     */
+    public long getTotalTime() {
+        return finishTime - submitTime;
+    }
+
+    @NonNull @Override public String toString() {
+        return String.format("CommandResult{id=%s, exitCode=%s, isTerminated=%s, totalTime=%sns}",
+                id, exitCode, isTerminated, getTotalTime());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates every thread of the execution library.
+ * <br>
+ * By default, normal platform threads are used. A custom {@link ThreadFactory} allows to control
+ * the naming, priority or type of the threads, its threads are used as they are. {@link #useVirtualThreads()}
+ * switches to virtual threads on JVMs which support them.
+ * <br>
+ * NOTE: Only threads created after changing the factory are affected.
+ */
+public final class ExecutionThreads {
+    private static final String TAG = ExecutionThreads.class.getSimpleName();
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+        @Override public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable);
+        }
+    };
+
+    private static volatile ThreadFactory sThreadFactory = DEFAULT_THREAD_FACTORY;
+    // created by us, so its threads get named like the default ones
+    private static volatile ThreadFactory sVirtualThreadFactory;
+
+    private ExecutionThreads() { }
+
+    /**
+     * @param threadFactory The factory for all threads, null restores the default
+     */
+    public static void setThreadFactory(@Nullable ThreadFactory threadFactory) {
+        sThreadFactory = (threadFactory != null ? threadFactory : DEFAULT_THREAD_FACTORY);
+    }
+
+    @NonNull public static ThreadFactory getThreadFactory() {
+        return sThreadFactory;
+    }
+
+    /**
+     * Uses virtual threads, if the JVM supports them.
+     * <br>
+     * The threads of a shell spend most of their time waiting, parked threads do not occupy a
+     * platform thread anymore. Reading the output of a shell is blocking file I/O though, which
+     * still occupies one while waiting.
+     *
+     * @return false, if virtual threads are not supported and nothing got changed
+     */
+    public static boolean useVirtualThreads() {
+        final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+        if (virtualThreadFactory == null) {
+            return false;
+        }
+        sVirtualThreadFactory = virtualThreadFactory;
+        setThreadFactory(virtualThreadFactory);
+        return true;
+    }
+
+    @Nullable private static ThreadFactory createVirtualThreadFactory() {
+        // Thread.ofVirtual().factory(), looked up at runtime as it only exists since Java 21
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Object builder = ofVirtual.invoke(null);
+            final Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.w(TAG, String.format("Virtual threads are not supported: %s", e));
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new, not yet started thread via the current factory.
+     * <br>
+     * Name and daemon flag only get applied to threads of our own factories, a custom factory
+     * decides about them on its own.
+     */
+    @NonNull /* package */ static Thread newThread(@NonNull Runnable runnable, @NonNull String name, boolean daemon) {
+        final ThreadFactory threadFactory = sThreadFactory;
+        final Thread thread = threadFactory.newThread(runnable);
+        if (threadFactory != DEFAULT_THREAD_FACTORY && threadFactory != sVirtualThreadFactory) {
+            return thread;
+        }
+
+        thread.setName(name);
+        if (thread.isDaemon() != daemon) {
+            try {
+                thread.setDaemon(daemon);
+            } catch (IllegalArgumentException ignored) {
+                // virtual threads are always daemon threads
+            }
+        }
+        return thread;
+    }
+}
@@ -26,8 +26,11 @@ package at.amartinz.execution;
 
 import java.io.Closeable;
 import java.net.Socket;
+import java.nio.charset.Charset;
 
 /* package */ class IoUtils {
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static void closeQuietly(final Object o) {
         if (o instanceof Socket) {
             try {
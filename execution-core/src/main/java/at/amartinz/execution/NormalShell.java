@@ -34,7 +34,11 @@ import at.amartinz.execution.exceptions.RootDeniedException;
 
 public class NormalShell extends Shell {
     protected NormalShell() throws IOException, TimeoutException, RootDeniedException {
-        super(false);
+        this(ShellManager.isMultiplexed());
+    }
+
+    protected NormalShell(boolean isMultiplexed) throws IOException, TimeoutException, RootDeniedException {
+        super(ShellManager.getNormalShellExecutable(), false, isMultiplexed);
     }
 
     @Nullable public static String fireAndBlock(String command) {
@@ -96,4 +100,19 @@ public class NormalShell extends Shell {
         }
         return Shell.fireAndForgetInternal(command, shell);
     }
+
+    /**
+     * Submits the command without blocking the calling thread, with {@link Command#OUTPUT_STRING}.
+     */
+    @Nullable public static CommandFuture submit(String command) {
+        return submit(new Command(command).setOutputType(Command.OUTPUT_STRING));
+    }
+
+    @Nullable public static CommandFuture submit(Command command) {
+        final NormalShell shell = ShellManager.get().getNormalShell();
+        if (shell == null) {
+            return null;
+        }
+        return Shell.submitInternal(command, shell);
+    }
 }
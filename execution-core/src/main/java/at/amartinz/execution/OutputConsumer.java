@@ -24,7 +24,23 @@
 
 package at.amartinz.execution;
 
-/* package */ class ShellLogger {
-    public static boolean DEBUG = false;
-    public static boolean RAMPAGE = false;
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the output of a {@link Command#OUTPUT_STREAM} command line by line, as it arrives.
+ * <br>
+ * Lines are passed on the thread which parses the shell output. Blocking in
+ * {@link #onOutputLine(String)} pushes back on the shell, which stops once the pipe is full.
+ * <br>
+ * With {@link Command#ERROR_MERGE}, error lines are passed from the thread reading stderr,
+ * so implementations need to be thread safe.
+ */
+public interface OutputConsumer {
+    void onOutputLine(@NonNull String line);
+
+    /**
+     * Called once the command finished or got terminated, no more lines will follow.
+     * Must not block.
+     */
+    void onOutputEnd();
 }
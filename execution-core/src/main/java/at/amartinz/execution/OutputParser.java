@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+/**
+ * Streaming parser for the shell output, working directly on the raw bytes.
+ * <br>
+ * Bytes are split into lines and every line is checked for the marker token. The id and exit code
+ * of a marker are decoded without allocating, lines are only handed out as byte ranges, so the
+ * callback can decide whether it needs to decode them at all.
+ * <br>
+ * A binary frame starts with a header line of "TOKEN+ id length", followed by exactly length raw
+ * bytes, which are passed through without looking at them.
+ * <br>
+ * A process header of "TOKEN- id pid" reports the subshell, which executes a tracked command.
+ */
+/* package */ class OutputParser {
+    interface Callback {
+        /**
+         * Called for every line which is not part of a marker.
+         * The bytes are only valid for the duration of the call.
+         */
+        void onLine(byte[] buffer, int offset, int length);
+
+        void onMarker(int id, int exitCode);
+
+        /**
+         * Called with the pid of the subshell, which executes the command with the given id.
+         */
+        void onProcessStarted(int id, int pid);
+
+        void onBinaryStart(int id, long length);
+
+        /**
+         * Called with the raw bytes of the current binary frame, possibly in multiple chunks.
+         * The bytes are only valid for the duration of the call.
+         */
+        void onBinaryData(byte[] buffer, int offset, int length);
+
+        void onBinaryEnd();
+    }
+
+    private final byte[] token;
+    private final Callback callback;
+
+    // holds the start of a line which did not end within the last chunk
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength;
+
+    // bytes of the current binary frame, which still need to be passed through
+    private long binaryRemaining;
+
+    public OutputParser(String token, Callback callback) {
+        this.token = token.getBytes(IoUtils.UTF_8);
+        this.callback = callback;
+    }
+
+    public void feed(byte[] buffer, int offset, int length) {
+        final int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (binaryRemaining > 0) {
+                final int chunk = (int) Math.min(binaryRemaining, end - i);
+                callback.onBinaryData(buffer, i, chunk);
+                binaryRemaining -= chunk;
+                if (binaryRemaining == 0) {
+                    callback.onBinaryEnd();
+                }
+
+                i += chunk - 1;
+                lineStart = i + 1;
+                continue;
+            }
+
+            if (buffer[i] != '\n') {
+                continue;
+            }
+
+            if (lineLength > 0) {
+                appendToLine(buffer, lineStart, i - lineStart);
+                processLine(lineBuffer, 0, lineLength);
+                lineLength = 0;
+            } else {
+                processLine(buffer, lineStart, i - lineStart);
+            }
+            lineStart = i + 1;
+        }
+
+        if (lineStart < end) {
+            appendToLine(buffer, lineStart, end - lineStart);
+        }
+    }
+
+    /**
+     * Processes the last line if it did not end with a newline, needs to be called on EOF.
+     */
+    public void finish() {
+        if (lineLength > 0) {
+            processLine(lineBuffer, 0, lineLength);
+            lineLength = 0;
+        }
+    }
+
+    private void appendToLine(byte[] buffer, int offset, int length) {
+        if (lineLength + length > lineBuffer.length) {
+            final byte[] newBuffer = new byte[Math.max(lineBuffer.length * 2, lineLength + length)];
+            System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+            lineBuffer = newBuffer;
+        }
+        System.arraycopy(buffer, offset, lineBuffer, lineLength, length);
+        lineLength += length;
+    }
+
+    private void processLine(byte[] buffer, int offset, int length) {
+        // strip the carriage return of windows style line endings
+        if (length > 0 && buffer[offset + length - 1] == '\r') {
+            length--;
+        }
+
+        final int pos = indexOfToken(buffer, offset, length);
+        if (pos == -1) {
+            callback.onLine(buffer, offset, length);
+            return;
+        }
+        if (pos > offset) {
+            // token is suffix of the output, send the output part
+            callback.onLine(buffer, offset, pos - offset);
+        }
+
+        // TOKEN id exitCode, TOKEN+ id length or TOKEN- id pid
+        final int end = offset + length;
+        int i = pos + token.length;
+        final boolean isBinaryHeader = (i < end && buffer[i] == '+');
+        final boolean isProcessHeader = (i < end && buffer[i] == '-');
+        if (isBinaryHeader || isProcessHeader) {
+            i++;
+        }
+        if (i >= end || buffer[i] != ' ') {
+            return;
+        }
+        i++;
+
+        final int idStart = i;
+        int id = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            id = (id * 10) + (buffer[i] - '0');
+            i++;
+        }
+        if (i == idStart) {
+            return;
+        }
+
+        if (isBinaryHeader) {
+            startBinary(id, buffer, i, end);
+        } else if (isProcessHeader) {
+            final int pid = parseNumber(buffer, i, end);
+            if (pid > 0) {
+                callback.onProcessStarted(id, pid);
+            }
+        } else {
+            callback.onMarker(id, parseNumber(buffer, i, end));
+        }
+    }
+
+    private void startBinary(int id, byte[] buffer, int i, int end) {
+        // some implementations of wc pad the length with spaces
+        while (i < end && buffer[i] == ' ') {
+            i++;
+        }
+
+        final int start = i;
+        long binaryLength = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            binaryLength = (binaryLength * 10) + (buffer[i] - '0');
+            i++;
+        }
+        // a header without a length is no frame, the command fails once its marker arrives
+        if (i == start) {
+            return;
+        }
+
+        callback.onBinaryStart(id, binaryLength);
+        binaryRemaining = binaryLength;
+        if (binaryRemaining == 0) {
+            callback.onBinaryEnd();
+        }
+    }
+
+    private static int parseNumber(byte[] buffer, int i, int end) {
+        if (i >= end || buffer[i] != ' ') {
+            return -1;
+        }
+        i++;
+
+        final boolean isNegative = (i < end && buffer[i] == '-');
+        if (isNegative) {
+            i++;
+        }
+
+        final int start = i;
+        int exitCode = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+            exitCode = (exitCode * 10) + (buffer[i] - '0');
+            i++;
+        }
+        if (i == start || i != end) {
+            return -1;
+        }
+        return (isNegative ? -exitCode : exitCode);
+    }
+
+    private int indexOfToken(byte[] buffer, int offset, int length) {
+        final int last = offset + length - token.length;
+        final byte first = token[0];
+        outer:
+        for (int i = offset; i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < token.length; j++) {
+                if (buffer[i + j] != token[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded LRU cache for the results of read-only commands, shared by all shells.
+ * <br>
+ * Commands opt in via {@link Command#setCacheTtl(long)}. Results are keyed by the command text,
+ * the shell type and the output and error type, so a cached result looks exactly like a real one.
+ */
+public final class ResultCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final ResultCache sInstance = new ResultCache();
+
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > maxEntries;
+        }
+    };
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long hitCount;
+    private long missCount;
+
+    private ResultCache() { }
+
+    public static ResultCache get() {
+        return sInstance;
+    }
+
+    /**
+     * @param maxEntries The maximum amount of cached results, the least recently used ones get evicted first
+     */
+    public synchronized ResultCache setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must not be negative: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+
+        final Iterator<String> iterator = entries.keySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return this;
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Drops the cached results of the given commands, on root and normal shells alike.
+     * Call it after running anything that changes what the commands would return.
+     */
+    public synchronized void invalidate(String... commands) {
+        final String commandText = joinCommands(commands);
+        final Iterator<CachedResult> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().commandText.equals(commandText)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    @Nullable /* package */ CachedResult lookup(Command command, boolean isRoot) {
+        final String key = createKey(command, isRoot);
+        synchronized (this) {
+            final CachedResult cached = entries.get(key);
+            if (cached == null) {
+                missCount++;
+                return null;
+            }
+            if (System.nanoTime() - cached.expireTime >= 0) {
+                entries.remove(key);
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            return cached;
+        }
+    }
+
+    /* package */ void store(Command command, boolean isRoot, long ttl, int exitCode, @Nullable String output,
+            @Nullable List<String> outputList, @Nullable String errorOutput) {
+        final String commandText = joinCommands(command.getCommands());
+        final String key = createKey(command, isRoot);
+        final long expireTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+        final CachedResult cached = new CachedResult(commandText, expireTime, exitCode, output,
+                (outputList != null ? new ArrayList<>(outputList) : null), errorOutput);
+        synchronized (this) {
+            if (maxEntries > 0) {
+                entries.put(key, cached);
+            }
+        }
+    }
+
+    private static String createKey(Command command, boolean isRoot) {
+        return (isRoot ? 'r' : 'n') + String.valueOf(command.getOutputType()) + ':' + command.getErrorType() + ':'
+               + joinCommands(command.getCommands());
+    }
+
+    private static String joinCommands(String[] commands) {
+        if (commands.length == 1) {
+            return commands[0];
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String command : commands) {
+            sb.append(command).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /* package */ static final class CachedResult {
+        private final String commandText;
+        private final long expireTime;
+
+        /* package */ final int exitCode;
+        /* package */ final String output;
+        /* package */ final List<String> outputList;
+        /* package */ final String errorOutput;
+
+        private CachedResult(String commandText, long expireTime, int exitCode, String output, List<String> outputList,
+                String errorOutput) {
+            this.commandText = commandText;
+            this.expireTime = expireTime;
+            this.exitCode = exitCode;
+            this.output = output;
+            this.outputList = outputList;
+            this.errorOutput = errorOutput;
+        }
+    }
+}
@@ -34,7 +34,11 @@ import at.amartinz.execution.exceptions.RootDeniedException;
 
 public class RootShell extends Shell {
     protected RootShell() throws IOException, TimeoutException, RootDeniedException {
-        super(true);
+        this(ShellManager.isMultiplexed());
+    }
+
+    protected RootShell(boolean isMultiplexed) throws IOException, TimeoutException, RootDeniedException {
+        super(ShellManager.getRootShellExecutable(), true, isMultiplexed);
     }
 
     @Nullable public static String fireAndBlock(String command) {
@@ -96,4 +100,19 @@ public class RootShell extends Shell {
         }
         return Shell.fireAndForgetInternal(command, shell);
     }
+
+    /**
+     * Submits the command without blocking the calling thread, with {@link Command#OUTPUT_STRING}.
+     */
+    @Nullable public static CommandFuture submit(String command) {
+        return submit(new Command(command).setOutputType(Command.OUTPUT_STRING));
+    }
+
+    @Nullable public static CommandFuture submit(Command command) {
+        final RootShell shell = ShellManager.get().getRootShell();
+        if (shell == null) {
+            return null;
+        }
+        return Shell.submitInternal(command, shell);
+    }
 }
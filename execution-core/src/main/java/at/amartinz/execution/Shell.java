@@ -0,0 +1,1289 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import at.amartinz.execution.exceptions.RootDeniedException;
+
+public abstract class Shell {
+    private static final String TAG = Shell.class.getSimpleName();
+
+    public static final int DEFAULT_TIMEOUT = 15000;
+
+    public static final String DEFAULT_ROOT_EXECUTABLE = "su";
+    public static final String DEFAULT_NORMAL_EXECUTABLE = "/system/bin/sh";
+
+    private static final String ENCODING = "UTF-8";
+    private static final int READ_BUFFER_SIZE = 8192;
+    // evaluated by the shell, falls back to /tmp if the directory does not exist
+    private static final String DEFAULT_BINARY_TEMP_DIRECTORY = "$TMPDIR";
+    private static final String TOKEN = "Y#*N^W^T@#@G";
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    // how often a lane may get passed over by higher lanes, before it gets served once anyway
+    private static final int STARVATION_LIMIT = 16;
+    // how long a dead shell waits for the error thread to drain the remaining error markers
+    private static final int ERROR_DRAIN_TIMEOUT = 1000;
+    // a multiplexed shell stops being read, while this much of its output is waiting to be dispatched
+    private static final int MAX_PENDING_DISPATCH_BYTES = 16 * READ_BUFFER_SIZE;
+
+    public int shellTimeout = DEFAULT_TIMEOUT;
+
+    public boolean isRoot;
+
+    private volatile boolean isClosed;
+    private volatile boolean isExecuting;
+
+    public String error;
+
+    private final String executable;
+    private final Process process;
+
+    private final InputStream inputStream;
+
+    private final InputStream errorStream;
+
+    private final OutputStreamWriter outputStream;
+
+    // driven by the shared threads of the ShellMultiplexer instead of threads of our own
+    private final boolean isMultiplexed;
+    private final OutputParser outputParser;
+    private final OutputParser errorParser;
+    // only touched by the multiplexer input thread
+    private boolean isExitWritten;
+    // output read by the multiplexer output thread, parsed and dispatched in order by a dispatch thread
+    private final ConcurrentLinkedQueue<OutputChunk> dispatchQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingDispatchBytes = new AtomicInteger();
+    private final AtomicBoolean isDispatching = new AtomicBoolean();
+
+    private volatile boolean shouldClose;
+
+    // commands which got added but are not written to the shell yet, one lane per priority,
+    // many producers, one consumer
+    private final ConcurrentLinkedQueue<Command>[] pendingLanes = createLanes();
+    // only touched by the input thread, how often a lane got passed over while not being empty
+    private final int[] laneSkips = new int[pendingLanes.length];
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // commands which got written to the shell and are waiting for their output, in write order
+    private final ConcurrentLinkedQueue<Command> runningCommands = new ConcurrentLinkedQueue<>();
+    // the same commands, waiting for their error output, as stderr gets read independently
+    private final ConcurrentLinkedQueue<Command> runningErrorCommands = new ConcurrentLinkedQueue<>();
+
+    // only written by the input thread
+    private volatile int totalExecuted;
+    // only written by the doOutput thread
+    private volatile int totalRead;
+    // only touched by the error thread
+    private int totalErrorRead;
+
+    private volatile Thread inputThread;
+    private volatile Thread errorThread;
+
+    private volatile boolean isKilled;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile OnShellDiedListener onShellDiedListener;
+
+    private volatile String binaryTempDirectory = DEFAULT_BINARY_TEMP_DIRECTORY;
+
+    private volatile long lingerNanos;
+    private volatile int lingerMaxCommands = Integer.MAX_VALUE;
+
+    private final ShellMetrics metrics = new ShellMetrics();
+
+    private volatile int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    // set by the input thread while it waits for executing commands to finish
+    private volatile boolean isWaitingForWindow;
+
+    protected Shell(boolean isRoot) throws IOException, TimeoutException, RootDeniedException {
+        this((isRoot ? DEFAULT_ROOT_EXECUTABLE : DEFAULT_NORMAL_EXECUTABLE), isRoot);
+    }
+
+    /**
+     * @param executable The shell to start, like "su" or "/system/bin/sh"
+     * @param isRoot     Whether the shell is expected to run as root
+     */
+    protected Shell(String executable, boolean isRoot) throws IOException, TimeoutException, RootDeniedException {
+        this(executable, isRoot, false);
+    }
+
+    /**
+     * @param executable    The shell to start, like "su" or "/system/bin/sh"
+     * @param isRoot        Whether the shell is expected to run as root
+     * @param isMultiplexed Whether the shell gets driven by the threads of the {@link ShellMultiplexer},
+     *                      instead of three threads of its own
+     */
+    protected Shell(String executable, boolean isRoot, boolean isMultiplexed)
+            throws IOException, TimeoutException, RootDeniedException {
+        this.isRoot = isRoot;
+        this.isMultiplexed = isMultiplexed;
+        this.outputParser = new OutputParser(TOKEN, outputCallback);
+        this.errorParser = new OutputParser(TOKEN, errorCallback);
+
+        this.executable = executable;
+        this.process = Runtime.getRuntime().exec(executable);
+
+        this.inputStream = this.process.getInputStream();
+
+        this.errorStream = this.process.getErrorStream();
+
+        this.outputStream = new OutputStreamWriter(this.process.getOutputStream(), ENCODING);
+
+        final Worker worker = new Worker(this);
+        final Thread workerThread = ExecutionThreads.newThread(worker, "Shell worker", false);
+        workerThread.start();
+
+        try {
+            workerThread.join(this.shellTimeout);
+
+            switch (worker.exitCode) {
+                case Worker.EXIT_TIMEOUT: {
+                    try {
+                        this.process.destroy();
+                    } catch (Exception ignored) { }
+
+                    closeStreams();
+
+                    throw new TimeoutException(this.error);
+                }
+
+                case Worker.EXIT_ERROR: {
+                    try {
+                        this.process.destroy();
+                    } catch (Exception ignored) { }
+
+                    closeStreams();
+
+                    throw new RootDeniedException(this.error);
+                }
+
+                default:
+                case Worker.EXIT_SUCCESS: {
+                    if (isMultiplexed) {
+                        // notifying the shell wakes up the shared input thread
+                        this.inputThread = ShellMultiplexer.get().register(this);
+                        break;
+                    }
+
+                    final Thread inputThread = ExecutionThreads.newThread(this.inputRunnable, "Shell input", false);
+                    this.inputThread = inputThread;
+                    inputThread.start();
+
+                    ExecutionThreads.newThread(this.outputRunnable, "Shell doOutput", false).start();
+                    final Thread errorThread = ExecutionThreads.newThread(this.errorRunnable, "Shell error", false);
+                    this.errorThread = errorThread;
+                    errorThread.start();
+                }
+            }
+        } catch (InterruptedException ie) {
+            workerThread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new TimeoutException();
+        }
+    }
+
+    public boolean shouldClose() {
+        return shouldClose;
+    }
+
+    public boolean isClosed() {
+        return isClosed;
+    }
+
+    public boolean isExecuting() {
+        return isExecuting;
+    }
+
+    /**
+     * @return Whether the shell process is still running and accepting commands
+     */
+    public boolean isAlive() {
+        return !shouldClose && !isClosed && isProcessRunning();
+    }
+
+    /**
+     * @return Whether the shell is stuck. That is the case if the currently executing command
+     * already timed out and the shell did not send anything for longer than {@link #shellTimeout}.
+     */
+    public boolean isWedged() {
+        final Command command = runningCommands.peek();
+        if (command == null || !command.isTerminated()) {
+            return false;
+        }
+        final long idleTime = System.nanoTime() - lastActivity;
+        return idleTime > TimeUnit.MILLISECONDS.toNanos(shellTimeout);
+    }
+
+    /**
+     * Kills the shell process. In contrast to {@link #close()}, commands which did not get executed
+     * yet, as well as idempotent executing commands, are handed to the {@link OnShellDiedListener}.
+     */
+    public void kill() {
+        this.isKilled = true;
+        this.shouldClose = true;
+        try {
+            process.destroy();
+        } catch (Exception ignored) { }
+        this.notifyThreads();
+    }
+
+    /**
+     * Kills a subshell of this shell, without blocking.
+     */
+    /* package */ void killProcess(int pid) {
+        CommandKiller.get().kill(executable, pid);
+    }
+
+    /* package */ void setOnShellDiedListener(OnShellDiedListener onShellDiedListener) {
+        this.onShellDiedListener = onShellDiedListener;
+    }
+
+    /**
+     * Adds a command, which got taken over from a dead shell, while keeping its future.
+     */
+    /* package */ void resubmit(final Command command) {
+        // output of an interrupted execution must not show up in the result of the retry
+        command.clearOutput();
+        enqueue(command, command.getFuture());
+    }
+
+    /**
+     * @return The amount of commands which got added but are not yet written to the shell
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return The amount of commands which got written to the shell but did not finish yet
+     */
+    public int getInFlightCount() {
+        return totalExecuted - totalRead;
+    }
+
+    /**
+     * Enables micro batching of commands from independent callers.
+     * <br>
+     * While the shell is still busy with previously written commands, the input thread waits up to
+     * the given time for more commands before flushing, or until the given amount of commands is
+     * buffered. If the shell is idle, commands are always flushed right away.
+     * <br>
+     * Multiplexed shells do not linger, as their input thread is shared.
+     *
+     * @param lingerMicros The maximum time to wait before flushing, 0 disables lingering
+     * @param maxCommands  The amount of buffered commands which causes an immediate flush
+     */
+    public Shell setLinger(long lingerMicros, int maxCommands) {
+        this.lingerMaxCommands = (maxCommands > 0 ? maxCommands : Integer.MAX_VALUE);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+        return this;
+    }
+
+    /**
+     * Limits the amount of commands, which are written to the shell but did not finish yet.
+     * <br>
+     * Commands beyond that limit stay pending, which allows commands with a higher priority to
+     * overtake them. A batch is always written as a whole.
+     *
+     * @param maxInFlight The maximum amount of executing commands, defaults to {@link #DEFAULT_MAX_IN_FLIGHT}
+     */
+    public Shell setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.notifyThreads();
+        return this;
+    }
+
+    /**
+     * Sets the directory, in which the output of {@link Command#OUTPUT_BINARY} commands gets
+     * buffered until its length is known. If it is not writable by the shell, $TMPDIR,
+     * /data/local/tmp and /tmp are tried. Commands fail, if none of them is writable.
+     */
+    public Shell setBinaryTempDirectory(String binaryTempDirectory) {
+        this.binaryTempDirectory = (isEmpty(binaryTempDirectory)
+                ? DEFAULT_BINARY_TEMP_DIRECTORY : binaryTempDirectory);
+        return this;
+    }
+
+    /**
+     * @return A snapshot of the metrics of this shell, which only get recorded while
+     * {@link ShellMetrics#setEnabled(boolean)} is set
+     */
+    public ShellMetrics.Snapshot getMetrics() {
+        return metrics.snapshot(getPendingCount(), getInFlightCount());
+    }
+
+    /* package */ ShellMetrics getShellMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The amount of commands which are waiting to be written or are still executing
+     */
+    public int getLoad() {
+        return getPendingCount() + getInFlightCount();
+    }
+
+    public Command add(final Command command) {
+        if (enqueue(command, null) && ShellMetrics.isEnabled()) {
+            metrics.onCommandSubmitted(1);
+        }
+        return command;
+    }
+
+    /**
+     * Adds the command without blocking.
+     *
+     * @return A future which gets completed with the result once the command finished or got terminated
+     */
+    public CommandFuture submitCommand(final Command command) {
+        final CommandFuture future = new CommandFuture(command);
+        if (enqueue(command, future) && ShellMetrics.isEnabled()) {
+            metrics.onCommandSubmitted(1);
+        }
+        return future;
+    }
+
+    /**
+     * Adds all commands at once without blocking. The commands get written to the shell together
+     * with a single flush, but are still executed and completed one by one.
+     * <br>
+     * The whole batch is queued with the priority of its first command.
+     *
+     * @return The futures of the commands, in the same order as the commands
+     */
+    public List<CommandFuture> submitBatch(final List<Command> commands) {
+        if (shouldClose) {
+            throw new IllegalStateException("Unable to add commands to a closed shell");
+        }
+
+        final List<CommandFuture> futures = new ArrayList<>(commands.size());
+        if (commands.isEmpty()) {
+            return futures;
+        }
+
+        // link the commands, so they get picked up by the input thread as a whole
+        Command previous = null;
+        for (final Command command : commands) {
+            final CommandFuture future = new CommandFuture(command);
+            command.resetCommand();
+            command.setFuture(future);
+            command.setShell(this);
+            futures.add(future);
+
+            if (previous != null) {
+                previous.nextInBatch = command;
+            }
+            previous = command;
+        }
+
+        final Command first = commands.get(0);
+        pendingCount.addAndGet(commands.size());
+        pendingLanes[first.getPriority()].offer(first);
+        if (ShellMetrics.isEnabled()) {
+            metrics.onCommandSubmitted(commands.size());
+        }
+
+        notifyThreads();
+        return futures;
+    }
+
+    /**
+     * @return false, if the command got answered from the {@link ResultCache} and was not queued
+     */
+    private boolean enqueue(final Command command, final CommandFuture future) {
+        if (shouldClose) {
+            throw new IllegalStateException("Unable to add commands to a closed shell");
+        }
+
+        command.resetCommand();
+        command.setFuture(future);
+        command.setShell(this);
+        if (command.isCacheable()) {
+            final ResultCache.CachedResult cached = ResultCache.get().lookup(command, isRoot);
+            if (cached != null) {
+                command.completeFromCache(cached);
+                return false;
+            }
+        }
+
+        pendingCount.incrementAndGet();
+        pendingLanes[command.getPriority()].offer(command);
+
+        notifyThreads();
+        return true;
+    }
+
+    protected static Command fireAndBlockInternal(final Command command, final Shell shell) {
+        return shell.add(command).waitFor();
+    }
+
+    protected static Command fireAndBlockStringInternal(final Command command, final Shell shell) {
+        return shell.add(command.setOutputType(Command.OUTPUT_STRING)).waitFor();
+    }
+
+    protected static Command fireAndBlockStringNewlineInternal(final Command command, final Shell shell) {
+        return shell.add(command.setOutputType(Command.OUTPUT_STRING_NEWLINE)).waitFor();
+    }
+
+    protected static Command fireAndBlockListInternal(final Command command, final Shell shell) {
+        return shell.add(command.setOutputType(Command.OUTPUT_LIST)).waitFor();
+    }
+
+    protected static Command fireAndForgetInternal(final Command command, final Shell shell) {
+        return shell.add(command);
+    }
+
+    protected static CommandFuture submitInternal(final Command command, final Shell shell) {
+        return shell.submitCommand(command);
+    }
+
+    protected void notifyThreads() {
+        // unparking is a no-op if the input thread is not parked, the permit is kept for its next park
+        LockSupport.unpark(inputThread);
+    }
+
+    public void close() {
+        // the input thread writes all pending commands before it exits the shell
+        this.shouldClose = true;
+        this.notifyThreads();
+
+        if (ShellLogger.DEBUG) {
+            ShellLogger.v(TAG, String.format("Shell closed! - %s", this));
+        }
+    }
+
+    private void closeStreams() {
+        IoUtils.closeQuietly(this.inputStream);
+
+        IoUtils.closeQuietly(this.errorStream);
+
+        IoUtils.closeQuietly(this.outputStream);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentLinkedQueue<Command>[] createLanes() {
+        final ConcurrentLinkedQueue<Command>[] lanes = new ConcurrentLinkedQueue[Command.PRIORITY_BULK + 1];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ConcurrentLinkedQueue<>();
+        }
+        return lanes;
+    }
+
+    /**
+     * Takes the next pending command, higher lanes first. A lane which got passed over
+     * {@link #STARVATION_LIMIT} times in a row gets served next. Only called by the input thread.
+     */
+    private Command pollPending() {
+        for (int i = pendingLanes.length - 1; i > 0; i--) {
+            if (laneSkips[i] >= STARVATION_LIMIT) {
+                final Command command = pendingLanes[i].poll();
+                laneSkips[i] = 0;
+                if (command != null) {
+                    return command;
+                }
+            }
+        }
+
+        for (int i = 0; i < pendingLanes.length; i++) {
+            final Command command = pendingLanes[i].poll();
+            if (command != null) {
+                for (int j = i + 1; j < pendingLanes.length; j++) {
+                    if (!pendingLanes[j].isEmpty()) {
+                        laneSkips[j]++;
+                    }
+                }
+                laneSkips[i] = 0;
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private boolean isWindowFull() {
+        return (totalExecuted - totalRead) >= maxInFlight;
+    }
+
+    /**
+     * Parks the input thread until the amount of executing commands dropped below the limit.
+     *
+     * @return false, if the shell got closed in the meantime
+     */
+    private boolean awaitWindow() throws InterruptedException {
+        while (isWindowFull() && !isClosed) {
+            isWaitingForWindow = true;
+            // check again, the doOutput thread may have missed the flag
+            if (isWindowFull() && !isClosed) {
+                LockSupport.park(this);
+            }
+            isWaitingForWindow = false;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return !isClosed;
+    }
+
+    private final Runnable inputRunnable = new Runnable() {
+        @Override public void run() {
+            final StringBuilder writeBuffer = new StringBuilder(256);
+            try {
+                while (true) {
+                    if (!awaitWindow()) {
+                        return;
+                    }
+
+                    Command cmd = pollPending();
+                    if (cmd == null) {
+                        isExecuting = false;
+                        if (shouldClose) {
+                            outputStream.write("\nexit 0\n");
+                            outputStream.flush();
+                            return;
+                        }
+
+                        // wait until someone adds a command or closes the shell
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+                        continue;
+                    }
+
+                    // if the shell is still busy, it does not matter if we wait a bit before flushing
+                    final boolean isShellBusy = !runningCommands.isEmpty();
+                    int bufferedCommands = writeChain(cmd, writeBuffer);
+
+                    final long currentLingerNanos = lingerNanos;
+                    if (isShellBusy && currentLingerNanos > 0) {
+                        final long deadline = System.nanoTime() + currentLingerNanos;
+                        while (bufferedCommands < lingerMaxCommands && !shouldClose && !isWindowFull()) {
+                            cmd = pollPending();
+                            if (cmd != null) {
+                                bufferedCommands += writeChain(cmd, writeBuffer);
+                                continue;
+                            }
+
+                            final long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            LockSupport.parkNanos(this, remaining);
+                            if (Thread.interrupted()) {
+                                throw new InterruptedException();
+                            }
+                        }
+                    }
+
+                    if (writeBuffer.length() > 0) {
+                        outputStream.write(writeBuffer.toString());
+                        outputStream.flush();
+                        writeBuffer.setLength(0);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, "IOException | InterruptedException", e);
+                }
+            } finally {
+                isExecuting = false;
+                closeStreams();
+            }
+        }
+    };
+
+    /**
+     * Appends the command and all commands of its batch to the buffer. Only called by the input thread.
+     *
+     * @return The amount of commands which got appended
+     */
+    private int writeChain(Command cmd, final StringBuilder writeBuffer) {
+        // a batch is queued as a single chain of commands, which gets written with a single flush
+        int written = 0;
+        while (cmd != null) {
+            final Command next = cmd.nextInBatch;
+            cmd.nextInBatch = null;
+            pendingCount.decrementAndGet();
+
+            if (!cmd.isFinished()) {
+                isExecuting = true;
+                writeCommand(cmd, writeBuffer);
+                written++;
+            }
+            cmd = next;
+        }
+        return written;
+    }
+
+    /**
+     * Appends the command and its marker to the buffer. Only called by the input thread.
+     */
+    private void writeCommand(final Command cmd, final StringBuilder writeBuffer) {
+        cmd.startExecution();
+        // needs to be queued before writing, the doOutput thread may see its output right away
+        runningCommands.offer(cmd);
+        runningErrorCommands.offer(cmd);
+
+        final boolean isBinary = (cmd.getOutputType() == Command.OUTPUT_BINARY);
+        final boolean isTracked = cmd.isTracked();
+        if (isBinary) {
+            // collect stdout in a temporary file first, as we need to know its length upfront. The file is
+            // only readable by the shell and created exclusively, with mktemp or noclobber if it is missing.
+            writeBuffer.append("__ef=; for __ed in \"").append(binaryTempDirectory)
+                    .append("\" \"$TMPDIR\" /data/local/tmp /tmp; do ")
+                    .append("[ -d \"$__ed\" ] && [ -w \"$__ed\" ] || continue; ")
+                    .append("__ef=$(umask 077; mktemp \"$__ed/.execution.XXXXXX\" 2>/dev/null) && [ -n \"$__ef\" ] && break; ")
+                    .append("__ef=\"$__ed/.execution.$$.").append(totalExecuted).append("\"; ")
+                    .append("(umask 077; set -C; : > \"$__ef\") 2>/dev/null && break; __ef=; done\n")
+                    .append("__ee=1; if [ -n \"$__ef\" ]; then\n(\n");
+        } else if (isTracked) {
+            writeBuffer.append("(\n");
+        }
+        if (isTracked) {
+            // the subshell reports its own pid before doing anything else, so it can be killed
+            writeBuffer.append("read __p __r < /proc/self/stat; echo ").append(TOKEN).append("- ")
+                    .append(totalExecuted).append(" $__p >&2\n");
+        }
+
+        final String[] toExecute = cmd.getCommands();
+        for (final String cmdToExecute : toExecute) {
+            if (isEmpty(cmdToExecute)) {
+                continue;
+            }
+            writeBuffer.append(cmdToExecute);
+        }
+
+        if (isBinary) {
+            // without a frame, the command gets terminated instead of reading the payload as lines
+            writeBuffer.append("\n) > \"$__ef\"; __ee=$?\n")
+                    .append("__el=$(wc -c 2>/dev/null < \"$__ef\"); if [ -n \"$__el\" ]; then echo ").append(TOKEN)
+                    .append("+ ").append(totalExecuted).append(" $__el; cat \"$__ef\" 2>/dev/null; fi; rm -f \"$__ef\"\nfi")
+                    .append("\necho ").append(TOKEN).append(' ').append(totalExecuted).append(" $__ee\n");
+        } else {
+            if (isTracked) {
+                writeBuffer.append("\n)");
+            }
+            writeBuffer.append("\necho ").append(TOKEN).append(' ').append(totalExecuted).append(" $?\n");
+        }
+        // the error marker tells the error thread that all error output of this command got read
+        writeBuffer.append("echo ").append(TOKEN).append(' ').append(totalExecuted).append(" 0 >&2\n");
+        totalExecuted++;
+    }
+
+    private static boolean isEmpty(String string) {
+        return string == null || string.length() == 0;
+    }
+
+    private final Runnable outputRunnable = new Runnable() {
+        @Override public void run() {
+            final OutputParser parser = outputParser;
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+            boolean reachedEof = false;
+            try {
+                // as long as there is something to read, we will keep reading
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    lastActivity = System.nanoTime();
+                    if (ShellMetrics.isEnabled()) {
+                        metrics.onBytesRead(read);
+                    }
+                    parser.feed(buffer, 0, read);
+                }
+                // EOF, shell closed
+                parser.finish();
+                reachedEof = true;
+            } catch (IOException e) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, "IOException", e);
+                }
+            } finally {
+                finishShell(reachedEof);
+            }
+        }
+    };
+
+    private void finishShell(boolean waitForProcess) {
+        try {
+            if (waitForProcess) {
+                process.waitFor();
+            }
+            process.destroy();
+        } catch (Exception ignored) { }
+
+        // let the error thread process the markers which are still on their way, before the streams get closed
+        final Thread errorThread = this.errorThread;
+        if (errorThread != null && errorThread != Thread.currentThread()) {
+            try {
+                errorThread.join(ERROR_DRAIN_TIMEOUT);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        closeStreams();
+        isClosed = true;
+        onShellFinished();
+    }
+
+    /**
+     * Writes pending commands without waiting for anything. Only called by the multiplexer input thread.
+     *
+     * @return Whether anything got written
+     */
+    /* package */ boolean writePendingCommands(final StringBuilder writeBuffer) {
+        if (isExitWritten || isClosed) {
+            return false;
+        }
+
+        try {
+            while (true) {
+                if (isWindowFull()) {
+                    isWaitingForWindow = true;
+                    // check again, the multiplexer output thread may have missed the flag
+                    if (isWindowFull()) {
+                        break;
+                    }
+                    isWaitingForWindow = false;
+                }
+
+                final Command cmd = pollPending();
+                if (cmd == null) {
+                    isExecuting = false;
+                    break;
+                }
+                writeChain(cmd, writeBuffer);
+            }
+
+            if (shouldClose && pendingCount.get() == 0) {
+                writeBuffer.append("\nexit 0\n");
+                isExitWritten = true;
+            }
+            if (writeBuffer.length() == 0) {
+                return false;
+            }
+            outputStream.write(writeBuffer.toString());
+            outputStream.flush();
+        } catch (IOException e) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, "IOException", e);
+            }
+            // the multiplexer output thread notices the broken streams and finishes the shell
+            isExitWritten = true;
+            closeStreams();
+        } finally {
+            writeBuffer.setLength(0);
+        }
+        return true;
+    }
+
+    /**
+     * Reads whatever stdout and stderr have available, without blocking, and hands it to the
+     * dispatch thread of the shell. Only called by the multiplexer output thread.
+     *
+     * @return The amount of bytes read, or -1 if the shell is finished
+     */
+    /* package */ int readAvailableOutput(final byte[] buffer) {
+        if (pendingDispatchBytes.get() >= MAX_PENDING_DISPATCH_BYTES) {
+            // the consumers can not keep up, let the pipes fill up like they would for a threaded shell
+            return 0;
+        }
+
+        int total;
+        try {
+            total = readAvailable(inputStream, false, buffer);
+            total += readAvailable(errorStream, true, buffer);
+
+            if (total == 0 && !isProcessRunning()) {
+                // the process is gone, everything it wrote is in the pipes already
+                int read;
+                while ((read = readAvailable(inputStream, false, buffer) + readAvailable(errorStream, true, buffer)) > 0) {
+                    total += read;
+                }
+                postOutput(OutputChunk.END);
+                return -1;
+            }
+        } catch (IOException e) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, "IOException", e);
+            }
+            postOutput(OutputChunk.BROKEN);
+            return -1;
+        }
+        return total;
+    }
+
+    private int readAvailable(InputStream stream, boolean isError, byte[] buffer) throws IOException {
+        final int available = stream.available();
+        if (available <= 0) {
+            return 0;
+        }
+
+        final int read = stream.read(buffer, 0, Math.min(available, buffer.length));
+        if (read > 0) {
+            lastActivity = System.nanoTime();
+            if (ShellMetrics.isEnabled()) {
+                metrics.onBytesRead(read);
+            }
+            pendingDispatchBytes.addAndGet(read);
+            postOutput(new OutputChunk(Arrays.copyOf(buffer, read), isError));
+        }
+        return Math.max(0, read);
+    }
+
+    private void postOutput(OutputChunk chunk) {
+        dispatchQueue.offer(chunk);
+        if (isDispatching.compareAndSet(false, true)) {
+            ShellMultiplexer.get().dispatch(dispatchRunnable);
+        }
+    }
+
+    // runs on a thread of the multiplexer dispatch pool, never more than once at a time per shell
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override public void run() {
+            do {
+                OutputChunk chunk;
+                while ((chunk = dispatchQueue.poll()) != null) {
+                    dispatchOutput(chunk);
+                }
+                isDispatching.set(false);
+                // output may have been posted after the queue was drained, but before the flag was cleared
+            } while (!dispatchQueue.isEmpty() && isDispatching.compareAndSet(false, true));
+        }
+    };
+
+    private void dispatchOutput(OutputChunk chunk) {
+        if (chunk.data == null) {
+            outputParser.finish();
+            errorParser.finish();
+            finishShell(chunk == OutputChunk.END);
+            return;
+        }
+
+        try {
+            (chunk.isError ? errorParser : outputParser).feed(chunk.data, 0, chunk.data.length);
+        } catch (RuntimeException re) {
+            // the dispatch thread is shared, do not let a failing consumer take the whole shell down
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, "Error while dispatching output", re);
+            }
+        } finally {
+            pendingDispatchBytes.addAndGet(-chunk.data.length);
+        }
+    }
+
+    private static final class OutputChunk {
+        // the process exited, or its streams broke
+        private static final OutputChunk END = new OutputChunk(null, false);
+        private static final OutputChunk BROKEN = new OutputChunk(null, false);
+
+        private final byte[] data;
+        private final boolean isError;
+
+        private OutputChunk(byte[] data, boolean isError) {
+            this.data = data;
+            this.isError = isError;
+        }
+    }
+
+    private boolean isProcessRunning() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException itse) {
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether commands are executing, which did not send all of their output yet
+     */
+    /* package */ boolean isAwaitingOutput() {
+        return !runningCommands.isEmpty() || !runningErrorCommands.isEmpty();
+    }
+
+    private void onShellFinished() {
+        // if the shell died without us asking for it, let the listener take over what is left
+        final OnShellDiedListener listener = (!shouldClose || isKilled) ? onShellDiedListener : null;
+        final List<Command> orphans = new ArrayList<>();
+
+        Command command;
+        while ((command = runningCommands.poll()) != null) {
+            if (listener != null && command.isIdempotent() && !command.isFinished()
+                    && command.getOutputType() != Command.OUTPUT_STREAM) {
+                // we do not know how far it got, so only retry commands which can safely run again,
+                // streamed lines already reached the consumer and can not be taken back
+                orphans.add(command);
+            } else if (command.totalOutput < command.totalOutputProcessed) {
+                command.terminate("Did not process all doOutput!");
+            } else {
+                command.terminate("Unexpected termination!");
+            }
+        }
+        for (final ConcurrentLinkedQueue<Command> lane : pendingLanes) {
+            while ((command = lane.poll()) != null) {
+                while (command != null) {
+                    final Command next = command.nextInBatch;
+                    command.nextInBatch = null;
+                    pendingCount.decrementAndGet();
+                    if (listener != null && !command.isFinished()) {
+                        orphans.add(command);
+                    } else {
+                        command.terminate("Shell closed before execution!");
+                    }
+                    command = next;
+                }
+            }
+        }
+
+        // commands whose doOutput marker arrived, but which never got their error marker
+        while ((command = runningErrorCommands.poll()) != null) {
+            if (!command.isFinished() && !orphans.contains(command)) {
+                command.terminate("Unexpected termination!");
+            }
+        }
+
+        // nothing can be written anymore, let the input thread exit
+        shouldClose = true;
+        notifyThreads();
+
+        if (listener != null) {
+            listener.onShellDied(this, orphans);
+        }
+    }
+
+    // only invoked by the doOutput thread, or the dispatch thread of a multiplexed shell
+    private final OutputParser.Callback outputCallback = new OutputParser.Callback() {
+        private Command command;
+        private Command binaryCommand;
+
+        @Override public void onLine(byte[] buffer, int offset, int length) {
+            if (command == null) {
+                command = runningCommands.peek();
+                if (command == null) {
+                    return;
+                }
+            }
+
+            // only decode the line if anyone is going to look at it
+            if (command.wantsOutput()) {
+                command.doOutput(command.id, new String(buffer, offset, length, IoUtils.UTF_8));
+            }
+        }
+
+        @Override public void onMarker(int id, int exitCode) {
+            if (id != totalRead) {
+                return;
+            }
+
+            if (command == null) {
+                command = runningCommands.peek();
+                if (command == null) {
+                    return;
+                }
+            }
+            // output is dispatched synchronously on this thread, there is nothing left to wait for
+            runningCommands.poll();
+            if (command.isMissingBinaryOutput()) {
+                command.terminate("Could not buffer the binary output, no writable temporary directory");
+            } else {
+                command.setExitCode(exitCode);
+                if (command.onStreamFinished(true)) {
+                    command.commandFinished();
+                }
+            }
+            command = null;
+
+            totalRead++;
+            if (isWaitingForWindow) {
+                notifyThreads();
+            }
+        }
+
+        @Override public void onProcessStarted(int id, int pid) {
+            // pids are only sent via stderr
+        }
+
+        @Override public void onBinaryStart(int id, long length) {
+            if (command == null) {
+                command = runningCommands.peek();
+            }
+            binaryCommand = (id == totalRead ? command : null);
+            if (binaryCommand != null) {
+                binaryCommand.startBinaryOutput(length);
+            }
+        }
+
+        @Override public void onBinaryData(byte[] buffer, int offset, int length) {
+            if (binaryCommand != null) {
+                binaryCommand.appendBinaryOutput(buffer, offset, length);
+            }
+        }
+
+        @Override public void onBinaryEnd() {
+            if (binaryCommand != null) {
+                binaryCommand.finishBinaryOutput();
+                binaryCommand = null;
+            }
+        }
+    };
+
+    private final Runnable errorRunnable = new Runnable() {
+        @Override public void run() {
+            final OutputParser parser = errorParser;
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+            try {
+                int read;
+                while ((read = errorStream.read(buffer)) != -1) {
+                    lastActivity = System.nanoTime();
+                    if (ShellMetrics.isEnabled()) {
+                        metrics.onBytesRead(read);
+                    }
+                    parser.feed(buffer, 0, read);
+                }
+                parser.finish();
+            } catch (IOException e) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, "Error while processing errors. Can you see the irony?", e);
+                }
+            }
+            // the doOutput thread terminates whatever is left
+        }
+    };
+
+    // only invoked by the error thread, or the dispatch thread of a multiplexed shell
+    private final OutputParser.Callback errorCallback = new OutputParser.Callback() {
+        private Command command;
+
+        @Override public void onLine(byte[] buffer, int offset, int length) {
+            if (command == null) {
+                command = runningErrorCommands.peek();
+                if (command == null) {
+                    return;
+                }
+            }
+
+            if (command.wantsErrorOutput()) {
+                command.doErrorOutput(command.id, new String(buffer, offset, length, IoUtils.UTF_8));
+            }
+        }
+
+        @Override public void onMarker(int id, int exitCode) {
+            if (id != totalErrorRead) {
+                return;
+            }
+
+            if (command == null) {
+                command = runningErrorCommands.peek();
+                if (command == null) {
+                    return;
+                }
+            }
+
+            runningErrorCommands.poll();
+            if (command.onStreamFinished(false)) {
+                command.commandFinished();
+            }
+            command = null;
+
+            totalErrorRead++;
+        }
+
+        @Override public void onProcessStarted(int id, int pid) {
+            if (id != totalErrorRead) {
+                return;
+            }
+            if (command == null) {
+                command = runningErrorCommands.peek();
+            }
+            if (command != null) {
+                command.onProcessStarted(pid);
+            }
+        }
+
+        @Override public void onBinaryStart(int id, long length) {
+            // binary frames are only sent via stdout
+        }
+
+        @Override public void onBinaryData(byte[] buffer, int offset, int length) { }
+
+        @Override public void onBinaryEnd() { }
+    };
+
+    /* package */ interface OnShellDiedListener {
+        /**
+         * Called on the doOutput thread of the dead shell, or its dispatch thread if it is multiplexed.
+         *
+         * @param orphans Commands which did not finish and can be executed on another shell
+         */
+        void onShellDied(Shell shell, List<Command> orphans);
+    }
+
+    protected static class Worker implements Runnable {
+        private static final String OPENING = "echo Opening\n";
+
+        public static final int EXIT_TIMEOUT = -10239;
+        public static final int EXIT_ERROR = -10339;
+        public static final int EXIT_SUCCESS = 1;
+
+        public final Shell shell;
+        private volatile int exitCode;
+
+        private Worker(Shell shell) {
+            this.shell = shell;
+            this.exitCode = EXIT_TIMEOUT;
+        }
+
+        @Override public void run() {
+            try {
+                shell.outputStream.write(OPENING);
+                shell.outputStream.flush();
+
+                // Check if we get "Opening" returned to check if we have properly opened a shell
+                while (true) {
+                    final String line = readLine();
+                    if (line == null) {
+                        // we are done and still did not get our "Opening" so something is fishy
+                        throw new EOFException();
+                    } else if ("".equals(line)) {
+                        // let's continue checking
+                    } else if ("Opening".equals(line)) {
+                        this.exitCode = EXIT_SUCCESS;
+                        setupShellOom();
+                        break;
+                    }
+                }
+
+                shell.error = "Unknown error occurred";
+            } catch (IOException ioe) {
+                this.exitCode = EXIT_ERROR;
+
+                final StringBuilder sb = new StringBuilder();
+                sb.append("Could not open shell -> ").append(ioe.getMessage()).append('\n');
+                if (shell.isRoot) {
+                    sb.append("Maybe root got denied?\n");
+                }
+                shell.error = sb.toString();
+            }
+        }
+
+        /**
+         * Reads byte by byte, so nothing after the line gets consumed before the doOutput thread starts.
+         */
+        private String readLine() throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int read;
+            while ((read = shell.inputStream.read()) != -1) {
+                if (read == '\n') {
+                    return sb.toString();
+                }
+                if (read != '\r') {
+                    sb.append((char) read);
+                }
+            }
+            return (sb.length() > 0 ? sb.toString() : null);
+        }
+
+        private void setupShellOom() {
+            // we need the shell process' pid
+            int pid;
+
+            final Class<?> processClass = shell.process.getClass();
+            Field field;
+            try {
+                field = processClass.getDeclaredField("pid");
+            } catch (NoSuchFieldException e) {
+                try {
+                    field = processClass.getDeclaredField("id");
+                } catch (NoSuchFieldException e1) {
+                    field = null;
+                }
+            }
+
+            if (field != null) {
+                try {
+                    field.setAccessible(true);
+                    pid = (Integer) field.get(shell.process);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    // newer JVMs deny access to the internals of java.base via InaccessibleObjectException
+                    if (ShellLogger.DEBUG) {
+                        ShellLogger.e(TAG, "Could not access pid field", e);
+                    }
+                    pid = -1;
+                }
+            } else {
+                pid = -1;
+            }
+
+            if (pid == -1) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, "could not get pid via reflection!");
+                }
+                return;
+            }
+
+            try {
+                setupOomAdj(pid);
+            } catch (Exception e) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, String.format("Could not set shell oom adj for pid %s!", pid), e);
+                }
+            }
+
+            try {
+                setupOomScoreAdj(pid);
+            } catch (Exception e) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.e(TAG, String.format("Could not set shell oom score adj for pid %s!", pid), e);
+                }
+            }
+        }
+
+        private void setupOomAdj(final int pid) throws Exception {
+            shell.outputStream.write("(echo -17 > /proc/" + pid + "/oom_adj) &> /dev/null\n");
+            shell.outputStream.write("(echo -17 > /proc/$$/oom_adj) &> /dev/null\n");
+            shell.outputStream.flush();
+        }
+
+        private void setupOomScoreAdj(final int pid) throws Exception {
+            shell.outputStream.write("(echo -1000 > /proc/" + pid + "/oom_score_adj) &> /dev/null\n");
+            shell.outputStream.write("(echo -1000 > /proc/$$/oom_score_adj) &> /dev/null\n");
+            shell.outputStream.flush();
+        }
+    }
+}
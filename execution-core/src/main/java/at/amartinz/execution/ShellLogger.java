@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution;
+
+import java.lang.reflect.Method;
+
+/**
+ * Logging hook of the execution library.
+ * <br>
+ * Logs go to logcat when running on Android and to stderr otherwise, unless a different
+ * {@link Logger} gets set via {@link #setLogger(Logger)}.
+ */
+public final class ShellLogger {
+    public static boolean DEBUG = false;
+    public static boolean RAMPAGE = false;
+
+    public interface Logger {
+        void v(String tag, String msg);
+
+        void w(String tag, String msg);
+
+        void e(String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Logger sLogger = createDefaultLogger();
+
+    private ShellLogger() { }
+
+    public static void setLogger(Logger logger) {
+        sLogger = (logger != null ? logger : createDefaultLogger());
+    }
+
+    public static void v(String tag, String msg) {
+        sLogger.v(tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        sLogger.w(tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        sLogger.e(tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        sLogger.e(tag, msg, tr);
+    }
+
+    private static Logger createDefaultLogger() {
+        try {
+            return new AndroidLogger(Class.forName("android.util.Log"));
+        } catch (Exception ignored) {
+            // not running on Android
+            return new StreamLogger();
+        }
+    }
+
+    /**
+     * Logs to logcat, android.util.Log is looked up at runtime, as it is not available on a plain JVM.
+     */
+    private static class AndroidLogger implements Logger {
+        private final Method v;
+        private final Method w;
+        private final Method e;
+
+        private AndroidLogger(Class<?> logClass) throws NoSuchMethodException {
+            v = logClass.getMethod("v", String.class, String.class);
+            w = logClass.getMethod("w", String.class, String.class);
+            e = logClass.getMethod("e", String.class, String.class, Throwable.class);
+        }
+
+        @Override public void v(String tag, String msg) {
+            invoke(v, tag, msg);
+        }
+
+        @Override public void w(String tag, String msg) {
+            invoke(w, tag, msg);
+        }
+
+        @Override public void e(String tag, String msg, Throwable tr) {
+            invoke(e, tag, msg, tr);
+        }
+
+        private static void invoke(Method method, Object... args) {
+            try {
+                method.invoke(null, args);
+            } catch (Exception ignored) { }
+        }
+    }
+
+    private static class StreamLogger implements Logger {
+        @Override public void v(String tag, String msg) {
+            System.err.println("V/" + tag + ": " + msg);
+        }
+
+        @Override public void w(String tag, String msg) {
+            System.err.println("W/" + tag + ": " + msg);
+        }
+
+        @Override public void e(String tag, String msg, Throwable tr) {
+            System.err.println("E/" + tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import at.amartinz.execution.exceptions.RootDeniedException;
+
+public class ShellManager {
+    private static final String TAG = ShellManager.class.getSimpleName();
+
+    private static ShellManager sInstance;
+
+    private static final ArrayList<RootShell> rootShells = new ArrayList<>();
+    private static final ArrayList<NormalShell> normalShells = new ArrayList<>();
+
+    private static volatile String rootShellExecutable = Shell.DEFAULT_ROOT_EXECUTABLE;
+    private static volatile String normalShellExecutable = Shell.DEFAULT_NORMAL_EXECUTABLE;
+    private static volatile boolean isMultiplexed;
+
+    private static int rootShellPoolSize = 1;
+    private static int normalShellPoolSize = 1;
+    // shells which are getting created right now, guarded by the lock of their list
+    private static int rootShellsCreating;
+    private static int normalShellsCreating;
+
+    // hot spares, guarded by the lock of their list
+    private static boolean keepSpareRootShell;
+    private static boolean isSpareRootShellCreating;
+    private static RootShell spareRootShell;
+    private static boolean keepSpareNormalShell;
+    private static boolean isSpareNormalShellCreating;
+    private static NormalShell spareNormalShell;
+
+    // the metrics of all shells this manager created, including the ones which are already gone
+    private final ShellMetrics metrics = new ShellMetrics();
+
+    private ShellManager() {
+        cleanupShells();
+    }
+
+    @NonNull public static ShellManager get() {
+        if (sInstance == null) {
+            sInstance = new ShellManager();
+        }
+        return sInstance;
+    }
+
+    public static void enableDebug(boolean enableDebug) {
+        ShellLogger.DEBUG = enableDebug;
+    }
+
+    public static boolean isDebug() {
+        return ShellLogger.DEBUG;
+    }
+
+    @Nullable public RootShell getRootShell() {
+        return getRootShell(false);
+    }
+
+    /**
+     * @param newShell Whether to always create a new shell, instead of dispatching to the pool
+     * @return The least loaded root shell of the pool. A new shell gets created, if all shells
+     * are busy and the pool is not full yet.
+     */
+    @Nullable public RootShell getRootShell(boolean newShell) {
+        RootShell rootShell = null;
+
+        synchronized (rootShells) {
+            if (newShell) {
+                // a hot spare is exactly what we need, take it and create the next one in the background
+                final RootShell spareShell = takeSpareRootShell();
+                if (spareShell != null) {
+                    return spareShell;
+                }
+            } else {
+                rootShell = getLeastLoaded(rootShells);
+                // someone is already creating a shell, for example via prewarming, wait for it
+                while (rootShell == null && rootShellsCreating > 0) {
+                    try {
+                        rootShells.wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    rootShell = getLeastLoaded(rootShells);
+                }
+
+                if (rootShell != null && (rootShell.getLoad() == 0
+                        || (rootShells.size() + rootShellsCreating) >= rootShellPoolSize)) {
+                    return rootShell;
+                }
+
+                final RootShell spareShell = takeSpareRootShell();
+                if (spareShell != null) {
+                    return spareShell;
+                }
+            }
+            rootShellsCreating++;
+        }
+
+        final RootShell createdShell = createRootShell();
+
+        synchronized (rootShells) {
+            rootShellsCreating--;
+            rootShells.notifyAll();
+            if (createdShell == null) {
+                // fall back to a busy shell of the pool, if we have one
+                return rootShell;
+            }
+            rootShells.add(createdShell);
+        }
+        return createdShell;
+    }
+
+    /**
+     * Moves the hot spare into the pool, needs to be called with the lock of the pool held.
+     */
+    @Nullable private RootShell takeSpareRootShell() {
+        final RootShell spareShell = spareRootShell;
+        spareRootShell = null;
+        refillSpareRootShell();
+
+        if (spareShell == null || spareShell.shouldClose() || spareShell.isClosed()) {
+            return null;
+        }
+        rootShells.add(spareShell);
+        return spareShell;
+    }
+
+    /**
+     * Creates a new hot spare in the background, needs to be called with the lock of the pool held.
+     */
+    private void refillSpareRootShell() {
+        if (!keepSpareRootShell || spareRootShell != null || isSpareRootShellCreating) {
+            return;
+        }
+        isSpareRootShellCreating = true;
+
+        startBackgroundThread(new Runnable() {
+            @Override public void run() {
+                final RootShell createdShell = createRootShell();
+                synchronized (rootShells) {
+                    isSpareRootShellCreating = false;
+                    if (keepSpareRootShell && spareRootShell == null) {
+                        spareRootShell = createdShell;
+                    } else if (createdShell != null) {
+                        createdShell.close();
+                    }
+                }
+            }
+        }, "Shell spare");
+    }
+
+    /**
+     * Keeps an additional, ready to use root shell around, which gets handed out if a new shell is
+     * needed. The next spare gets created in the background right away.
+     */
+    public ShellManager setKeepSpareRootShell(boolean keepSpare) {
+        final RootShell toClose;
+        synchronized (rootShells) {
+            keepSpareRootShell = keepSpare;
+            if (keepSpare) {
+                toClose = null;
+                refillSpareRootShell();
+            } else {
+                toClose = spareRootShell;
+                spareRootShell = null;
+            }
+        }
+
+        if (toClose != null) {
+            toClose.close();
+        }
+        return this;
+    }
+
+    /**
+     * @return A new shell, which is not part of the pool and needs to be closed by the caller.
+     * It never gets multiplexed, as it is meant to keep running and would keep the multiplexer polling.
+     */
+    @Nullable /* package */ Shell createDedicatedShell(boolean isRoot) {
+        return (isRoot ? createRootShell(false) : createNormalShell(false));
+    }
+
+    @Nullable private RootShell createRootShell() {
+        return createRootShell(isMultiplexed);
+    }
+
+    @Nullable private RootShell createRootShell(boolean isMultiplexed) {
+        try {
+            final RootShell rootShell = new RootShell(isMultiplexed);
+            rootShell.setOnShellDiedListener(onShellDiedListener);
+            rootShell.getShellMetrics().setParent(metrics);
+            return rootShell;
+        } catch (IOException | TimeoutException | RootDeniedException e) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, "Error creating new root shell", e);
+            }
+        }
+        return null;
+    }
+
+    @Nullable public NormalShell getNormalShell() {
+        return getNormalShell(false);
+    }
+
+    /**
+     * @param newShell Whether to always create a new shell, instead of dispatching to the pool
+     * @return The least loaded shell of the pool. A new shell gets created, if all shells
+     * are busy and the pool is not full yet.
+     */
+    @Nullable public NormalShell getNormalShell(boolean newShell) {
+        NormalShell normalShell = null;
+
+        synchronized (normalShells) {
+            if (newShell) {
+                // a hot spare is exactly what we need, take it and create the next one in the background
+                final NormalShell spareShell = takeSpareNormalShell();
+                if (spareShell != null) {
+                    return spareShell;
+                }
+            } else {
+                normalShell = getLeastLoaded(normalShells);
+                // someone is already creating a shell, for example via prewarming, wait for it
+                while (normalShell == null && normalShellsCreating > 0) {
+                    try {
+                        normalShells.wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    normalShell = getLeastLoaded(normalShells);
+                }
+
+                if (normalShell != null && (normalShell.getLoad() == 0
+                        || (normalShells.size() + normalShellsCreating) >= normalShellPoolSize)) {
+                    return normalShell;
+                }
+
+                final NormalShell spareShell = takeSpareNormalShell();
+                if (spareShell != null) {
+                    return spareShell;
+                }
+            }
+            normalShellsCreating++;
+        }
+
+        final NormalShell createdShell = createNormalShell();
+
+        synchronized (normalShells) {
+            normalShellsCreating--;
+            normalShells.notifyAll();
+            if (createdShell == null) {
+                // fall back to a busy shell of the pool, if we have one
+                return normalShell;
+            }
+            normalShells.add(createdShell);
+        }
+        return createdShell;
+    }
+
+    /**
+     * Moves the hot spare into the pool, needs to be called with the lock of the pool held.
+     */
+    @Nullable private NormalShell takeSpareNormalShell() {
+        final NormalShell spareShell = spareNormalShell;
+        spareNormalShell = null;
+        refillSpareNormalShell();
+
+        if (spareShell == null || spareShell.shouldClose() || spareShell.isClosed()) {
+            return null;
+        }
+        normalShells.add(spareShell);
+        return spareShell;
+    }
+
+    /**
+     * Creates a new hot spare in the background, needs to be called with the lock of the pool held.
+     */
+    private void refillSpareNormalShell() {
+        if (!keepSpareNormalShell || spareNormalShell != null || isSpareNormalShellCreating) {
+            return;
+        }
+        isSpareNormalShellCreating = true;
+
+        startBackgroundThread(new Runnable() {
+            @Override public void run() {
+                final NormalShell createdShell = createNormalShell();
+                synchronized (normalShells) {
+                    isSpareNormalShellCreating = false;
+                    if (keepSpareNormalShell && spareNormalShell == null) {
+                        spareNormalShell = createdShell;
+                    } else if (createdShell != null) {
+                        createdShell.close();
+                    }
+                }
+            }
+        }, "Shell spare");
+    }
+
+    /**
+     * Keeps an additional, ready to use shell around, which gets handed out if a new shell is
+     * needed. The next spare gets created in the background right away.
+     */
+    public ShellManager setKeepSpareNormalShell(boolean keepSpare) {
+        final NormalShell toClose;
+        synchronized (normalShells) {
+            keepSpareNormalShell = keepSpare;
+            if (keepSpare) {
+                toClose = null;
+                refillSpareNormalShell();
+            } else {
+                toClose = spareNormalShell;
+                spareNormalShell = null;
+            }
+        }
+
+        if (toClose != null) {
+            toClose.close();
+        }
+        return this;
+    }
+
+    @Nullable private NormalShell createNormalShell() {
+        return createNormalShell(isMultiplexed);
+    }
+
+    @Nullable private NormalShell createNormalShell(boolean isMultiplexed) {
+        try {
+            final NormalShell normalShell = new NormalShell(isMultiplexed);
+            normalShell.setOnShellDiedListener(onShellDiedListener);
+            normalShell.getShellMetrics().setParent(metrics);
+            return normalShell;
+        } catch (IOException | TimeoutException | RootDeniedException e) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, "Error creating new shell", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts the shells in the background, so the first commands do not need to wait for them.
+     * Callers which need a shell while prewarming is in progress wait for it instead of starting
+     * another one.
+     * <br>
+     * NOTE: Prewarming root shells requests root access right away.
+     *
+     * @param rootShellCount   The amount of root shells, which should be ready in the pool
+     * @param normalShellCount The amount of normal shells, which should be ready in the pool
+     */
+    public ShellManager prewarm(int rootShellCount, int normalShellCount) {
+        final int rootToCreate;
+        synchronized (rootShells) {
+            rootToCreate = Math.max(0, rootShellCount - (rootShells.size() + rootShellsCreating));
+            rootShellsCreating += rootToCreate;
+        }
+
+        final int normalToCreate;
+        synchronized (normalShells) {
+            normalToCreate = Math.max(0, normalShellCount - (normalShells.size() + normalShellsCreating));
+            normalShellsCreating += normalToCreate;
+        }
+
+        if (rootToCreate == 0 && normalToCreate == 0) {
+            return this;
+        }
+
+        startBackgroundThread(new Runnable() {
+            @Override public void run() {
+                // normal shells first, they are quick and do not depend on the user granting root
+                for (int i = 0; i < normalToCreate; i++) {
+                    final NormalShell normalShell = createNormalShell();
+                    synchronized (normalShells) {
+                        normalShellsCreating--;
+                        if (normalShell != null) {
+                            normalShells.add(normalShell);
+                        }
+                        normalShells.notifyAll();
+                    }
+                }
+
+                for (int i = 0; i < rootToCreate; i++) {
+                    final RootShell rootShell = createRootShell();
+                    synchronized (rootShells) {
+                        rootShellsCreating--;
+                        if (rootShell != null) {
+                            rootShells.add(rootShell);
+                        }
+                        rootShells.notifyAll();
+                    }
+                }
+            }
+        }, "Shell prewarm");
+        return this;
+    }
+
+    private static void startBackgroundThread(Runnable runnable, String name) {
+        final Thread thread = ExecutionThreads.newThread(runnable, name, true);
+        thread.start();
+    }
+
+    private final Shell.OnShellDiedListener onShellDiedListener = new Shell.OnShellDiedListener() {
+        @Override public void onShellDied(Shell shell, List<Command> orphans) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.w(TAG, String.format("Shell died, re-dispatching %s commands - %s", orphans.size(), shell));
+            }
+
+            if (shell.isRoot) {
+                synchronized (rootShells) {
+                    rootShells.remove(shell);
+                }
+            } else {
+                synchronized (normalShells) {
+                    normalShells.remove(shell);
+                }
+            }
+
+            if (orphans.isEmpty()) {
+                return;
+            }
+
+            final Shell replacement = (shell.isRoot ? getRootShell() : getNormalShell());
+            for (final Command command : orphans) {
+                try {
+                    if (replacement == null) {
+                        throw new IllegalStateException("No replacement shell");
+                    }
+                    replacement.resubmit(command);
+                } catch (IllegalStateException ise) {
+                    command.terminate("Shell died and could not be replaced!");
+                }
+            }
+        }
+    };
+
+    /**
+     * Gets the least loaded, healthy shell. Dead shells get removed from the pool and wedged
+     * shells get killed, their commands are taken over by a replacement shell.
+     * Needs to be called with the lock of the pool held.
+     */
+    @Nullable private static <T extends Shell> T getLeastLoaded(ArrayList<T> shells) {
+        T leastLoaded = null;
+        int leastLoad = Integer.MAX_VALUE;
+        final Iterator<T> iterator = shells.iterator();
+        while (iterator.hasNext()) {
+            final T shell = iterator.next();
+            if (shell == null || !shell.isAlive()) {
+                iterator.remove();
+                continue;
+            }
+            if (shell.isWedged()) {
+                if (ShellLogger.DEBUG) {
+                    ShellLogger.w(TAG, String.format("Killing wedged shell - %s", shell));
+                }
+                iterator.remove();
+                shell.kill();
+                continue;
+            }
+
+            final int load = shell.getLoad();
+            if (load < leastLoad) {
+                leastLoaded = shell;
+                leastLoad = load;
+                if (load == 0) {
+                    break;
+                }
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * Sets the executable of shells, which get created from now on. Defaults to "su".
+     */
+    public ShellManager setRootShellExecutable(@NonNull String executable) {
+        rootShellExecutable = executable;
+        return this;
+    }
+
+    /**
+     * Sets the executable of shells, which get created from now on. Defaults to "/system/bin/sh",
+     * use "/bin/sh" when running on a normal Linux.
+     */
+    public ShellManager setNormalShellExecutable(@NonNull String executable) {
+        normalShellExecutable = executable;
+        return this;
+    }
+
+    /**
+     * Lets shells, which get created from now on, share two threads for all of their I/O,
+     * instead of using three threads per shell. Keeps the amount of threads flat for large pools,
+     * at the cost of a slightly higher latency, as the output of the shells gets polled.
+     */
+    public ShellManager setMultiplexed(boolean multiplexed) {
+        isMultiplexed = multiplexed;
+        return this;
+    }
+
+    /* package */ static boolean isMultiplexed() {
+        return isMultiplexed;
+    }
+
+    /* package */ static String getRootShellExecutable() {
+        return rootShellExecutable;
+    }
+
+    /* package */ static String getNormalShellExecutable() {
+        return normalShellExecutable;
+    }
+
+    /**
+     * Sets the maximum amount of root shells, which commands get dispatched to.
+     * <br>
+     * Commands on different shells run in parallel, so commands which depend on each other
+     * need to be submitted to the same shell, for example as a batch.
+     */
+    public ShellManager setRootShellPoolSize(int poolSize) {
+        synchronized (rootShells) {
+            rootShellPoolSize = Math.max(1, poolSize);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of normal shells, which commands get dispatched to.
+     *
+     * @see #setRootShellPoolSize(int)
+     */
+    public ShellManager setNormalShellPoolSize(int poolSize) {
+        synchronized (normalShells) {
+            normalShellPoolSize = Math.max(1, poolSize);
+        }
+        return this;
+    }
+
+    public void cleanupRootShells() {
+        synchronized (rootShells) {
+            if (rootShells.size() > 0) {
+                final Iterator<RootShell> rootShellIterator = rootShells.iterator();
+                while (rootShellIterator.hasNext()) {
+                    final RootShell rootShell = rootShellIterator.next();
+                    if (rootShell != null) {
+                        rootShell.close();
+                    }
+                    rootShellIterator.remove();
+                }
+                rootShells.clear();
+            }
+
+            if (spareRootShell != null) {
+                spareRootShell.close();
+                spareRootShell = null;
+            }
+        }
+    }
+
+    public void cleanupNormalShells() {
+        synchronized (normalShells) {
+            if (normalShells.size() > 0) {
+                final Iterator<NormalShell> normalShellIterator = normalShells.iterator();
+                while (normalShellIterator.hasNext()) {
+                    final NormalShell normalShell = normalShellIterator.next();
+                    if (normalShell != null) {
+                        normalShell.close();
+                    }
+                    normalShellIterator.remove();
+                }
+                normalShells.clear();
+            }
+
+            if (spareNormalShell != null) {
+                spareNormalShell.close();
+                spareNormalShell = null;
+            }
+        }
+    }
+
+    public int getNormalShellCount() {
+        synchronized (normalShells) {
+            return normalShells.size();
+        }
+    }
+
+    public int getRootShellCount() {
+        synchronized (rootShells) {
+            return rootShells.size();
+        }
+    }
+
+    /**
+     * @return A snapshot of the metrics of all shells, which only get recorded while
+     * {@link ShellMetrics#setEnabled(boolean)} is set. The queue depth and the amount of executing
+     * commands are summed up over the pooled shells.
+     */
+    public ShellMetrics.Snapshot getMetrics() {
+        int queueDepth = 0;
+        int inFlight = 0;
+        synchronized (rootShells) {
+            for (final RootShell rootShell : rootShells) {
+                queueDepth += rootShell.getPendingCount();
+                inFlight += rootShell.getInFlightCount();
+            }
+        }
+        synchronized (normalShells) {
+            for (final NormalShell normalShell : normalShells) {
+                queueDepth += normalShell.getPendingCount();
+                inFlight += normalShell.getInFlightCount();
+            }
+        }
+        return metrics.snapshot(queueDepth, inFlight);
+    }
+
+    public void cleanupShells() {
+        cleanupRootShells();
+        cleanupNormalShells();
+    }
+
+    public void onDestroy() {
+        cleanupShells();
+        CommandKiller.get().closeShells();
+    }
+}
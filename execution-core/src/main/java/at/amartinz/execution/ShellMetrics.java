@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package at.amartinz.execution;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of a {@link Shell} or of all shells of the {@link ShellManager}.
+ * <br>
+ * Nothing gets recorded unless enabled via {@link #setEnabled(boolean)}, while disabled every
+ * recording point only costs a volatile read. Metrics are polled via {@link #snapshot()}.
+ */
+public class ShellMetrics {
+    private static volatile boolean isEnabled;
+
+    private final long creationTime = System.nanoTime();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong terminated = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram firstOutput = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    // everything recorded here is recorded by the parent as well
+    private volatile ShellMetrics parent;
+
+    public static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /* package */ void setParent(ShellMetrics parent) {
+        this.parent = parent;
+    }
+
+    /* package */ void onCommandSubmitted(int count) {
+        submitted.addAndGet(count);
+        final ShellMetrics currentParent = parent;
+        if (currentParent != null) {
+            currentParent.onCommandSubmitted(count);
+        }
+    }
+
+    /* package */ void onBytesRead(int count) {
+        bytesRead.addAndGet(count);
+        final ShellMetrics currentParent = parent;
+        if (currentParent != null) {
+            currentParent.onBytesRead(count);
+        }
+    }
+
+    /* package */ void onTimeout() {
+        timeouts.incrementAndGet();
+        final ShellMetrics currentParent = parent;
+        if (currentParent != null) {
+            currentParent.onTimeout();
+        }
+    }
+
+    /**
+     * Records a finished or terminated command, all times are taken via {@link System#nanoTime()}.
+     * Times of 0 mark phases the command never reached.
+     */
+    /* package */ void onCommandFinished(boolean isTerminated, long submitTime, long startTime,
+            long firstOutputTime, long finishTime) {
+        if (isTerminated) {
+            terminated.incrementAndGet();
+        } else {
+            completed.incrementAndGet();
+        }
+        if (startTime != 0) {
+            queueWait.record(startTime - submitTime);
+        }
+        if (firstOutputTime != 0) {
+            firstOutput.record(firstOutputTime - submitTime);
+        }
+        if (finishTime != 0) {
+            total.record(finishTime - submitTime);
+        }
+
+        final ShellMetrics currentParent = parent;
+        if (currentParent != null) {
+            currentParent.onCommandFinished(isTerminated, submitTime, startTime, firstOutputTime, finishTime);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(0, 0);
+    }
+
+    /* package */ Snapshot snapshot(int queueDepth, int inFlight) {
+        return new Snapshot(System.nanoTime() - creationTime, queueDepth, inFlight, submitted.get(),
+                completed.get(), terminated.get(), timeouts.get(), bytesRead.get(),
+                queueWait.snapshot(), firstOutput.snapshot(), total.snapshot());
+    }
+
+    /**
+     * Immutable copy of the metrics at the time it got taken.
+     */
+    public static class Snapshot {
+        private final long uptime;
+        public final int queueDepth;
+        public final int inFlight;
+        public final long submitted;
+        public final long completed;
+        public final long terminated;
+        public final long timeouts;
+        public final long bytesRead;
+        /**
+         * Time from submitting a command until it got written to the shell.
+         */
+        public final LatencyHistogram.Snapshot queueWait;
+        /**
+         * Time from submitting a command until its first output arrived.
+         */
+        public final LatencyHistogram.Snapshot firstOutput;
+        /**
+         * Time from submitting a command until it finished or got terminated.
+         */
+        public final LatencyHistogram.Snapshot total;
+
+        private Snapshot(long uptime, int queueDepth, int inFlight, long submitted, long completed,
+                long terminated, long timeouts, long bytesRead, LatencyHistogram.Snapshot queueWait,
+                LatencyHistogram.Snapshot firstOutput, LatencyHistogram.Snapshot total) {
+            this.uptime = uptime;
+            this.queueDepth = queueDepth;
+            this.inFlight = inFlight;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.terminated = terminated;
+            this.timeouts = timeouts;
+            this.bytesRead = bytesRead;
+            this.queueWait = queueWait;
+            this.firstOutput = firstOutput;
+            this.total = total;
+        }
+
+        /**
+         * @return The finished and terminated commands per second since the metrics got created
+         */
+        public double getCommandsPerSecond() {
+            return perSecond(completed + terminated, uptime);
+        }
+
+        /**
+         * @return The finished and terminated commands per second since the given, older snapshot
+         */
+        public double getCommandsPerSecond(Snapshot previous) {
+            return perSecond((completed + terminated) - (previous.completed + previous.terminated),
+                    uptime - previous.uptime);
+        }
+
+        private static double perSecond(long count, long nanos) {
+            return (nanos <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+        }
+
+        @Override public String toString() {
+            return String.format("Snapshot{queueDepth=%s, inFlight=%s, submitted=%s, completed=%s, terminated=%s, " +
+                            "timeouts=%s, bytesRead=%s, commandsPerSecond=%.1f, queueWait=%s, firstOutput=%s, total=%s}",
+                    queueDepth, inFlight, submitted, completed, terminated, timeouts, bytesRead,
+                    getCommandsPerSecond(), queueWait, firstOutput, total);
+        }
+    }
+}
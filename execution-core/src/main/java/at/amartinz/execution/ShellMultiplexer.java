@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives any amount of multiplexed shells with two threads in total, one writing their commands and
+ * one reading their output.
+ * <br>
+ * The output thread only moves bytes out of the pipes. Parsing them, running the consumers and
+ * callbacks of the commands and handling dead shells happens in order per shell on a dispatch pool,
+ * so a slow consumer only holds up its own shell. A dispatch thread only exists while a shell has
+ * output to dispatch, so there are never more of them than multiplexed shells.
+ * <br>
+ * The pipes of a process can not be used with a selector, so the output thread polls the available
+ * bytes of all shells instead. While output is expected, it backs off from busy polling to short
+ * sleeps, which get longer once a command keeps running without printing anything. While nothing
+ * is executing it only wakes up now and then to notice dead shells.
+ */
+/* package */ class ShellMultiplexer {
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // long running commands do not need millisecond latency, after being quiet for a while
+    private static final long LONG_RUNNING_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_LONG_RUNNING_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    // empty polls which only yield, before backing off
+    private static final int SPIN_POLLS = 64;
+
+    private static final ShellMultiplexer sInstance = new ShellMultiplexer();
+
+    private final CopyOnWriteArrayList<Shell> shells = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean isStarted = new AtomicBoolean();
+    private final ExecutorService dispatchExecutor;
+
+    private volatile Thread inputThread;
+    private volatile Thread outputThread;
+    // set by the input thread, so the output thread stops backing off
+    private volatile boolean hasWritten;
+
+    private ShellMultiplexer() {
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                return ExecutionThreads.newThread(runnable, "Shell multiplexer dispatch", true);
+            }
+        };
+        dispatchExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+    }
+
+    public static ShellMultiplexer get() {
+        return sInstance;
+    }
+
+    /**
+     * @return The input thread, which needs to be unparked once the shell has something to write
+     */
+    public Thread register(Shell shell) {
+        if (isStarted.compareAndSet(false, true)) {
+            final Thread input = ExecutionThreads.newThread(inputRunnable, "Shell multiplexer input", true);
+            final Thread output = ExecutionThreads.newThread(outputRunnable, "Shell multiplexer output", true);
+            inputThread = input;
+            outputThread = output;
+            input.start();
+            output.start();
+        }
+
+        shells.add(shell);
+        LockSupport.unpark(outputThread);
+        return inputThread;
+    }
+
+    /**
+     * Runs the dispatch task of a shell. Every shell only ever has one of them running.
+     */
+    public void dispatch(Runnable dispatchRunnable) {
+        dispatchExecutor.execute(dispatchRunnable);
+    }
+
+    private final Runnable inputRunnable = new Runnable() {
+        @Override public void run() {
+            final StringBuilder writeBuffer = new StringBuilder(256);
+            while (true) {
+                boolean hasWritten = false;
+                for (final Shell shell : shells) {
+                    if (shell.writePendingCommands(writeBuffer)) {
+                        hasWritten = true;
+                    }
+                }
+
+                if (hasWritten) {
+                    // output is on its way, stop the output thread from sleeping
+                    ShellMultiplexer.this.hasWritten = true;
+                    LockSupport.unpark(outputThread);
+                } else {
+                    // until a shell gets notified about new commands
+                    LockSupport.park(this);
+                }
+            }
+        }
+    };
+
+    private final Runnable outputRunnable = new Runnable() {
+        @Override public void run() {
+            final byte[] buffer = new byte[8192];
+            int emptyPolls = 0;
+            long backoffNanos = MIN_BACKOFF_NANOS;
+            long lastProgress = System.nanoTime();
+
+            while (true) {
+                boolean hasRead = false;
+                boolean isAwaitingOutput = false;
+                for (final Shell shell : shells) {
+                    final int read = shell.readAvailableOutput(buffer);
+                    if (read < 0) {
+                        shells.remove(shell);
+                    } else if (read > 0) {
+                        hasRead = true;
+                    } else if (shell.isAwaitingOutput()) {
+                        isAwaitingOutput = true;
+                    }
+                }
+
+                if (hasRead || hasWritten) {
+                    hasWritten = false;
+                    emptyPolls = 0;
+                    backoffNanos = MIN_BACKOFF_NANOS;
+                    lastProgress = System.nanoTime();
+                } else if (!isAwaitingOutput) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    emptyPolls = 0;
+                    backoffNanos = MIN_BACKOFF_NANOS;
+                    lastProgress = System.nanoTime();
+                } else if (++emptyPolls <= SPIN_POLLS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, backoffNanos);
+                    final boolean isLongRunning = (System.nanoTime() - lastProgress > LONG_RUNNING_NANOS);
+                    backoffNanos = Math.min(backoffNanos * 2,
+                            (isLongRunning ? MAX_LONG_RUNNING_BACKOFF_NANOS : MAX_BACKOFF_NANOS));
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,343 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Samples files periodically with a single long running loop inside a dedicated shell,
+ * instead of submitting a new command for every poll.
+ * <br>
+ * Files are read with the read builtin of the shell, so only their first line is sampled.
+ * The interval is read from a control file on every round, so it can be changed while sampling.
+ * <br>
+ * The loop waits with usleep or a sleep which takes fractions of seconds. The toolbox of old Android
+ * versions has neither, there the interval gets rounded up to full seconds.
+ */
+public class ShellSampler {
+    private static final String TAG = ShellSampler.class.getSimpleName();
+
+    private static final Random sRandom = new Random();
+
+    public interface Listener {
+        /**
+         * Called once per round with the latest values of all files, in the order of the paths.
+         * A value is null, if the file could not be opened or had no line to read. With suppressed unchanged values,
+         * rounds without any change are not reported at all.
+         * <br>
+         * Gets invoked on the thread parsing the shell output. The arrays are reused for the next
+         * round and must not be kept.
+         *
+         * @param changed Whether the value at the same index changed in this round, always true for the first round
+         */
+        void onSample(@NonNull String[] values, @NonNull boolean[] changed);
+
+        /**
+         * Called once the sampler stopped, either via {@link #stop()} or because its shell died.
+         * The sampler still needs to be stopped in the latter case, to release its shell.
+         */
+        void onStopped();
+    }
+
+    private final boolean isRoot;
+    private final String[] paths;
+    private final Listener listener;
+    private final String token;
+
+    private final String[] values;
+    private final boolean[] changed;
+
+    private long interval;
+    private boolean suppressUnchanged = true;
+    private File controlDirectory = new File(System.getProperty("java.io.tmpdir", "/data/local/tmp"));
+
+    private File controlFile;
+    private Shell shell;
+    private Command command;
+
+    /**
+     * @param isRoot   Whether the files need to be read by a root shell
+     * @param interval The time between two rounds in milliseconds
+     */
+    public ShellSampler(boolean isRoot, @NonNull List<String> paths, long interval, @NonNull Listener listener) {
+        if (paths.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to sample");
+        }
+        this.isRoot = isRoot;
+        this.paths = paths.toArray(new String[paths.size()]);
+        this.listener = listener;
+        this.token = "ShellSampler" + Long.toHexString(sRandom.nextLong());
+        this.values = new String[this.paths.length];
+        this.changed = new boolean[this.paths.length];
+        setIntervalInternal(interval);
+    }
+
+    /**
+     * @param suppressUnchanged Whether the shell should only report values which changed, this is the default.
+     *                          Takes effect on the next {@link #start()}.
+     */
+    public synchronized ShellSampler setSuppressUnchanged(boolean suppressUnchanged) {
+        this.suppressUnchanged = suppressUnchanged;
+        return this;
+    }
+
+    /**
+     * @param controlDirectory A directory the app can write to and the shell can read from,
+     *                         defaults to the temporary directory of the app. Takes effect on the next {@link #start()}.
+     */
+    public synchronized ShellSampler setControlDirectory(@NonNull File controlDirectory) {
+        this.controlDirectory = controlDirectory;
+        return this;
+    }
+
+    /**
+     * Changes the interval of the running loop, starting with its next round.
+     *
+     * @param interval The time between two rounds in milliseconds
+     */
+    public synchronized ShellSampler setInterval(long interval) {
+        setIntervalInternal(interval);
+        if (controlFile != null) {
+            writeInterval();
+        }
+        return this;
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    public synchronized boolean isRunning() {
+        return command != null && !command.isFinished();
+    }
+
+    /**
+     * Creates the dedicated shell and starts the loop.
+     *
+     * @return false, if the loop could not be started
+     */
+    public synchronized boolean start() {
+        if (isRunning()) {
+            return true;
+        }
+
+        controlFile = new File(controlDirectory, token);
+        if (!writeInterval()) {
+            controlFile = null;
+            return false;
+        }
+
+        shell = ShellManager.get().createDedicatedShell(isRoot);
+        if (shell == null) {
+            cleanup();
+            return false;
+        }
+
+        Arrays.fill(values, null);
+        Arrays.fill(changed, false);
+        // no timeout, the loop runs until it gets stopped
+        command = new Command(0, 0, createScript())
+                .setOutputConsumer(new SampleConsumer(suppressUnchanged))
+                .setErrorType(Command.ERROR_NONE)
+                .setTracked(true);
+        shell.add(command);
+        return true;
+    }
+
+    /**
+     * Kills the loop and closes the dedicated shell.
+     */
+    public void stop() {
+        final Command currentCommand;
+        synchronized (this) {
+            currentCommand = command;
+        }
+        if (currentCommand != null) {
+            // kills the tracked loop and triggers onStopped via the consumer
+            currentCommand.cancel();
+        }
+        synchronized (this) {
+            cleanup();
+        }
+    }
+
+    private void cleanup() {
+        if (shell != null) {
+            shell.close();
+            shell = null;
+        }
+        if (controlFile != null) {
+            if (!controlFile.delete() && ShellLogger.DEBUG) {
+                ShellLogger.w(TAG, String.format("Could not delete control file %s", controlFile));
+            }
+            controlFile = null;
+        }
+        command = null;
+    }
+
+    private void setIntervalInternal(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        this.interval = interval;
+    }
+
+    private boolean writeInterval() {
+        // <seconds> <microseconds> <rounded up seconds>, for whatever way of sleeping the shell supports
+        final String content = String.format(Locale.US, "%d.%03d %d %d\n", interval / 1000, interval % 1000,
+                interval * 1000, (interval + 999) / 1000);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(controlFile);
+            outputStream.write(content.getBytes(IoUtils.UTF_8));
+            return true;
+        } catch (IOException ioe) {
+            if (ShellLogger.DEBUG) {
+                ShellLogger.e(TAG, String.format("Could not write control file %s", controlFile), ioe);
+            }
+            return false;
+        } finally {
+            IoUtils.closeQuietly(outputStream);
+        }
+    }
+
+    private String createScript() {
+        final String control = quote(controlFile.getAbsolutePath());
+        final StringBuilder script = new StringBuilder(256 + paths.length * 128);
+        // s, u and c are the interval in seconds, microseconds and rounded up seconds
+        script.append("s=1 u=1000000 c=1 m=c\n")
+                // toolbox sleep takes fractions as 0 and returns at once, so measure whether it actually slept
+                .append("if usleep 0 2>/dev/null; then m=u\n")
+                .append("else\n")
+                .append(" { read -r a x < /proc/uptime; } 2>/dev/null\n")
+                .append(" if sleep 0.1 2>/dev/null && { read -r b x < /proc/uptime; } 2>/dev/null")
+                .append(" && [ -n \"$a\" ] && [ -n \"$b\" ]")
+                .append(" && [ $(( ${b%.*}${b#*.} - ${a%.*}${a#*.} )) -ge 5 ]; then m=s; fi\n")
+                .append("fi\n")
+                .append("while :; do\n")
+                // keep the last interval, if the control file is being rewritten right now
+                .append(" { read -r ns nu nc < ").append(control).append("; } 2>/dev/null && [ -n \"$nc\" ]")
+                .append(" && s=$ns u=$nu c=$nc\n");
+        for (int index = 0; index < paths.length; index++) {
+            // f stays 1 if the file can not be opened, a last line without newline still counts as read
+            script.append(" v=; f=1; { IFS= read -r v || [ -n \"$v\" ]; } 2>/dev/null < ").append(quote(paths[index]))
+                    .append(" && f=0\n");
+            if (suppressUnchanged) {
+                // the first round always reports, as the old value starts out unset
+                script.append(" if [ \"${o").append(index).append("+x}\" != x ] || [ \"$f$v\" != \"$o").append(index)
+                        .append("\" ]; then o").append(index).append("=$f$v; ");
+            } else {
+                script.append(' ');
+            }
+            // <token> <index> <value>, or <token>!<index> if the file could not be read
+            script.append("if [ $f = 0 ]; then printf '").append(token).append(' ').append(index)
+                    .append(" %s\\n' \"$v\"; else printf '").append(token).append('!').append(index).append("\\n'; fi");
+            script.append(suppressUnchanged ? "; fi\n" : "\n");
+        }
+        // ends the round
+        script.append(" printf '").append(token).append("\\n'\n")
+                .append(" case $m in u) usleep $u;; s) sleep $s;; *) sleep $c;; esac\n")
+                .append("done");
+        return script.toString();
+    }
+
+    private static String quote(String argument) {
+        return '\'' + argument.replace("'", "'\\''") + '\'';
+    }
+
+    private class SampleConsumer implements OutputConsumer {
+        private final boolean suppressUnchanged;
+        // the end gets reported by the cancellation and again by the closing shell
+        private final AtomicBoolean isStopped = new AtomicBoolean();
+        private boolean isFirstRound = true;
+        private boolean hasChanges;
+
+        private SampleConsumer(boolean suppressUnchanged) {
+            this.suppressUnchanged = suppressUnchanged;
+        }
+
+        @Override public void onOutputLine(@NonNull String line) {
+            if (!line.startsWith(token)) {
+                return;
+            }
+
+            final int tokenLength = token.length();
+            if (line.length() == tokenLength) {
+                if (hasChanges || !suppressUnchanged) {
+                    listener.onSample(values, changed);
+                    Arrays.fill(changed, false);
+                    hasChanges = false;
+                }
+                isFirstRound = false;
+                return;
+            }
+
+            // <token> <index> <value>, or <token>!<index> for a failed read
+            final boolean isFailed = (line.charAt(tokenLength) == '!');
+            int index = 0;
+            int position = tokenLength + 1;
+            while (position < line.length()) {
+                final char c = line.charAt(position);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                index = index * 10 + (c - '0');
+                position++;
+            }
+            if (position == tokenLength + 1 || index >= values.length) {
+                return;
+            }
+
+            final String value;
+            if (isFailed) {
+                value = null;
+            } else {
+                value = (position + 1 < line.length() ? line.substring(position + 1) : "");
+            }
+            // the shell only skips unchanged values if they are suppressed, so compare in any case
+            final String previous = values[index];
+            if (isFirstRound || (previous == null ? value != null : !previous.equals(value))) {
+                changed[index] = true;
+                hasChanges = true;
+            }
+            values[index] = value;
+        }
+
+        @Override public void onOutputEnd() {
+            if (isStopped.compareAndSet(false, true)) {
+                listener.onStopped();
+            }
+        }
+    }
+}
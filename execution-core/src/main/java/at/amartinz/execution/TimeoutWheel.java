@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel which tracks the timeouts of all executing commands on a single thread.
+ * <br>
+ * Scheduling a timeout is O(1) and does not create a thread. Finished commands release their
+ * entry right away, the empty entry gets dropped once its tick comes up.
+ * <br>
+ * Timed out commands are only marked as terminated on the wheel thread. Their callbacks and the
+ * kill of their process are queued for a single callback thread, so a slow callback can not delay
+ * the wheel. The callback thread goes away while nothing timed out for a while.
+ */
+/* package */ class TimeoutWheel implements Runnable {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // needs to be a power of two, covers 25.6 seconds per round with a 50ms tick
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final TimeoutWheel sInstance = new TimeoutWheel();
+
+    private final Entry[] wheel = new Entry[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Entry> newEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isStarted = new AtomicBoolean();
+    private final ExecutorService terminationExecutor;
+    private final long startTime = System.nanoTime();
+
+    private volatile Thread thread;
+    private volatile boolean isIdle;
+
+    // only touched by the wheel thread
+    private long tick;
+    private int scheduled;
+
+    private TimeoutWheel() {
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                return ExecutionThreads.newThread(runnable, "Shell timeout callbacks", true);
+            }
+        };
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        terminationExecutor = executor;
+    }
+
+    public static TimeoutWheel get() {
+        return sInstance;
+    }
+
+    /**
+     * @return The entry of the timeout, to be released once the command finished
+     */
+    public Entry schedule(Command command, int generation, int timeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final Entry entry = new Entry(command, generation, deadline);
+        newEntries.offer(entry);
+
+        if (isStarted.compareAndSet(false, true)) {
+            final Thread thread = ExecutionThreads.newThread(this, "Shell timeout wheel", true);
+            this.thread = thread;
+            thread.start();
+        } else if (isIdle) {
+            LockSupport.unpark(thread);
+        }
+        return entry;
+    }
+
+    @Override public void run() {
+        while (true) {
+            transferNewEntries();
+
+            if (scheduled == 0) {
+                isIdle = true;
+                if (newEntries.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                isIdle = false;
+
+                // we did not tick while being idle, catch up without expiring anything
+                tick = (System.nanoTime() - startTime) / TICK_NANOS;
+                continue;
+            }
+
+            long now = System.nanoTime();
+            final long currentTick = (now - startTime) / TICK_NANOS;
+            while (tick <= currentTick) {
+                expireBucket((int) (tick & WHEEL_MASK));
+                tick++;
+            }
+
+            now = System.nanoTime();
+            final long nextTick = startTime + (tick * TICK_NANOS);
+            if (nextTick > now) {
+                LockSupport.parkNanos(this, nextTick - now);
+            }
+        }
+    }
+
+    private void transferNewEntries() {
+        Entry entry;
+        while ((entry = newEntries.poll()) != null) {
+            // round up, the entry must never expire before its deadline
+            long expireTick = (entry.deadline - startTime + TICK_NANOS - 1) / TICK_NANOS;
+            if (expireTick < tick) {
+                expireTick = tick;
+            }
+            entry.rounds = (expireTick - tick) / WHEEL_SIZE;
+
+            final int bucket = (int) (expireTick & WHEEL_MASK);
+            entry.next = wheel[bucket];
+            wheel[bucket] = entry;
+            scheduled++;
+        }
+    }
+
+    private void expireBucket(int bucket) {
+        Entry previous = null;
+        Entry entry = wheel[bucket];
+        while (entry != null) {
+            final Entry next = entry.next;
+            if (entry.rounds > 0) {
+                entry.rounds--;
+                previous = entry;
+            } else {
+                if (previous == null) {
+                    wheel[bucket] = next;
+                } else {
+                    previous.next = next;
+                }
+                entry.next = null;
+                scheduled--;
+
+                final Command command = entry.command;
+                if (command != null && command.onTimeout(entry.generation)) {
+                    terminationExecutor.execute(new Runnable() {
+                        @Override public void run() {
+                            command.onTerminatedByTimeout();
+                        }
+                    });
+                }
+            }
+            entry = next;
+        }
+    }
+
+    /* package */ static class Entry {
+        // cleared once the command finished, so it does not stay reachable until its deadline
+        private volatile Command command;
+        private final int generation;
+        private final long deadline;
+
+        private long rounds;
+        private Entry next;
+
+        private Entry(Command command, int generation, long deadline) {
+            this.command = command;
+            this.generation = generation;
+            this.deadline = deadline;
+        }
+
+        /* package */ void release() {
+            command = null;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package at.amartinz.execution.helper;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import at.amartinz.execution.Command;
+import at.amartinz.execution.OutputConsumer;
+import at.amartinz.execution.RootShell;
+import at.amartinz.execution.Shell;
+
+/**
+ * Reads and writes files directly from Java and only goes through the root shell,
+ * if the direct access is not permitted.
+ * <br>
+ * The route which worked is remembered per path, so files which need root do not fail
+ * the direct access over and over again.
+ */
+public class FileHelper {
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_NOT_FOUND = 1;
+    public static final int RESULT_PERMISSION_DENIED = 2;
+    public static final int RESULT_ERROR = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int ROUTE_DIRECT = 1;
+    private static final int ROUTE_ROOT = 2;
+
+    // sysfs and procfs nodes report a bogus size, read them in chunks until the end
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private static final ConcurrentHashMap<String, Integer> sReadRoutes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> sWriteRoutes = new ConcurrentHashMap<>();
+
+    // bulk scripts get more time with every file, on top of the default timeout
+    private static final int BULK_TIMEOUT_PER_FILE = 100;
+
+    // frames the output of bulk scripts, random so file contents can not fake a frame
+    private static final Random sRandom = new Random();
+
+    /**
+     * Result of a single file of a bulk operation.
+     */
+    public static class FileResult {
+        @NonNull public final String path;
+        /**
+         * One of {@link #RESULT_OK}, {@link #RESULT_NOT_FOUND}, {@link #RESULT_PERMISSION_DENIED} or {@link #RESULT_ERROR}
+         */
+        public final int result;
+        /**
+         * The content without leading and trailing whitespace, null if the file could not be read
+         */
+        @Nullable public final String content;
+
+        /* package */ FileResult(@NonNull String path, int result, @Nullable String content) {
+            this.path = path;
+            this.result = result;
+            this.content = content;
+        }
+
+        public boolean isSuccess() {
+            return result == RESULT_OK;
+        }
+
+        @Override public String toString() {
+            return String.format("FileResult{path=%s, result=%s, content=%s}", path, result, content);
+        }
+    }
+
+    /**
+     * @return The content of the file without leading and trailing whitespace,
+     * or null if it does not exist or can not be read at all
+     */
+    @Nullable public static String readFile(@NonNull String path) {
+        final FileResult directResult = readDirectRouted(path);
+        if (directResult != null) {
+            return directResult.content;
+        }
+
+        final Command command = new Command("cat " + quote(path))
+                .setOutputType(Command.OUTPUT_STRING_NEWLINE)
+                .setErrorType(Command.ERROR_NONE);
+        if (!isSuccess(executeAsRoot(command))) {
+            return null;
+        }
+        sReadRoutes.put(path, ROUTE_ROOT);
+        return command.getOutput();
+    }
+
+    /**
+     * Reads all files at once. Files which can be read directly are read from Java, all others
+     * are read with a single script through the root shell.
+     * <br>
+     * Missing or unreadable files do not affect the others, they get a result other than {@link #RESULT_OK}.
+     *
+     * @return The results in the order of the paths, duplicate paths are only read once
+     */
+    @NonNull public static Map<String, FileResult> readFiles(@NonNull List<String> paths) {
+        final LinkedHashMap<String, FileResult> results = new LinkedHashMap<>();
+        final ArrayList<String> rootPaths = new ArrayList<>();
+        for (final String path : paths) {
+            if (results.containsKey(path)) {
+                continue;
+            }
+            final FileResult directResult = readDirectRouted(path);
+            // keeps the position of the path, the result of the root shell gets filled in later
+            results.put(path, directResult);
+            if (directResult == null) {
+                rootPaths.add(path);
+            }
+        }
+
+        if (rootPaths.isEmpty()) {
+            return results;
+        }
+
+        final String token = createToken();
+        executeBulkScript(createReadScript(token, rootPaths), new BulkConsumer(token, rootPaths, true), results);
+        return results;
+    }
+
+    /**
+     * @return A script which prints every file, each followed by a line of "token index result"
+     */
+    /* package */ static String createReadScript(String token, List<String> paths) {
+        final StringBuilder script = new StringBuilder(paths.size() * 128);
+        for (int i = 0; i < paths.size(); i++) {
+            final String path = quote(paths.get(i));
+            // the marker always starts on a new line, even if the file does not end with one
+            script.append("if [ ! -e ").append(path).append(" ]; then r=").append(RESULT_NOT_FOUND)
+                    .append("; elif cat ").append(path).append(" 2>/dev/null; then r=").append(RESULT_OK)
+                    .append("; else r=").append(RESULT_ERROR)
+                    .append("; fi; printf '\\n").append(token).append(' ').append(i).append(" %s\\n' $r\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Writes all values at once and strictly in the order of the map, as tunables often depend on
+     * each other. Values are written directly from Java, until the first one needs root. From then
+     * on that value and all following ones are written with a single script through the root shell.
+     * <br>
+     * A failing write does not affect the others, it gets a result other than {@link #RESULT_OK}.
+     * Missing files are not created, they get {@link #RESULT_NOT_FOUND}.
+     *
+     * @param values The values to write, keyed by path. Values are written as is, without appending a newline.
+     * @return The results in the order of the values, without any content
+     */
+    @NonNull public static Map<String, FileResult> writeFiles(@NonNull Map<String, String> values) {
+        final LinkedHashMap<String, FileResult> results = new LinkedHashMap<>();
+        final ArrayList<String> rootPaths = new ArrayList<>();
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            final String path = entry.getKey();
+            // once the root shell is involved, writing directly would overtake the values before
+            final FileResult directResult = (rootPaths.isEmpty() ? writeDirectRouted(path, entry.getValue()) : null);
+            // keeps the position of the path, the result of the root shell gets filled in later
+            results.put(path, directResult);
+            if (directResult == null) {
+                rootPaths.add(path);
+            }
+        }
+
+        if (rootPaths.isEmpty()) {
+            return results;
+        }
+
+        final String token = createToken();
+        executeBulkScript(createWriteScript(token, rootPaths, values), new BulkConsumer(token, rootPaths, false), results);
+        // only the first one is known to need root, the others were written by root to keep the order
+        final String firstRootPath = rootPaths.get(0);
+        if (results.get(firstRootPath).isSuccess()) {
+            sWriteRoutes.put(firstRootPath, ROUTE_ROOT);
+        }
+        return results;
+    }
+
+    /**
+     * @return A script which writes the values of the paths, each followed by a line of "token index result"
+     */
+    /* package */ static String createWriteScript(String token, List<String> paths, Map<String, String> values) {
+        final StringBuilder script = new StringBuilder(paths.size() * 128);
+        for (int i = 0; i < paths.size(); i++) {
+            final String path = paths.get(i);
+            final String quotedPath = quote(path);
+            // redirect stderr first, so a failing open of the file stays quiet as well
+            script.append("if [ ! -e ").append(quotedPath).append(" ]; then r=").append(RESULT_NOT_FOUND)
+                    .append("; elif printf '%s' ").append(quote(values.get(path)))
+                    .append(" 2>/dev/null > ").append(quotedPath).append("; then r=").append(RESULT_OK)
+                    .append("; else r=").append(RESULT_ERROR)
+                    .append("; fi; printf '").append(token).append(' ').append(i).append(" %s\\n' $r\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Writes the value as is, without appending a newline. Missing files are not created.
+     *
+     * @return true if the value got written
+     */
+    public static boolean writeFile(@NonNull String path, @NonNull String value) {
+        final FileResult directResult = writeDirectRouted(path, value);
+        if (directResult != null) {
+            return directResult.isSuccess();
+        }
+
+        final String quotedPath = quote(path);
+        final Command command = new Command("[ -e " + quotedPath + " ] && printf '%s' " + quote(value) + " > " + quotedPath)
+                .setErrorType(Command.ERROR_NONE);
+        if (!isSuccess(executeAsRoot(command))) {
+            return false;
+        }
+        sWriteRoutes.put(path, ROUTE_ROOT);
+        return true;
+    }
+
+    /**
+     * Forgets all remembered routes, for example after root access got granted or revoked.
+     */
+    public static void forgetRoutes() {
+        sReadRoutes.clear();
+        sWriteRoutes.clear();
+    }
+
+    /**
+     * @return The result of reading the file directly, or null if it needs to be read by the root shell
+     */
+    @Nullable private static FileResult readDirectRouted(String path) {
+        final Integer route = sReadRoutes.get(path);
+        if (route != null && route == ROUTE_ROOT) {
+            return null;
+        }
+
+        try {
+            final String content = readDirect(path);
+            sReadRoutes.put(path, ROUTE_DIRECT);
+            return new FileResult(path, RESULT_OK, content);
+        } catch (IOException | SecurityException exception) {
+            if (isPermissionDenied(exception)) {
+                return null;
+            }
+            return new FileResult(path, (new File(path).exists() ? RESULT_ERROR : RESULT_NOT_FOUND), null);
+        }
+    }
+
+    /**
+     * @return The result of writing the file directly, or null if it needs to be written by the root shell
+     */
+    @Nullable private static FileResult writeDirectRouted(String path, String value) {
+        final Integer route = sWriteRoutes.get(path);
+        if (route != null && route == ROUTE_ROOT) {
+            return null;
+        }
+
+        // opening the file for writing would create it, next to sysfs nodes or anywhere else
+        final File file = new File(path);
+        if (!file.exists()) {
+            final File parent = file.getParentFile();
+            if (parent != null && parent.isDirectory() && parent.canExecute()) {
+                return new FileResult(path, RESULT_NOT_FOUND, null);
+            }
+            // the file may just be hidden from us, the root shell tells
+            return null;
+        }
+
+        try {
+            writeDirect(path, value);
+            sWriteRoutes.put(path, ROUTE_DIRECT);
+            return new FileResult(path, RESULT_OK, null);
+        } catch (IOException | SecurityException exception) {
+            if (isPermissionDenied(exception)) {
+                return null;
+            }
+            return new FileResult(path, (new File(path).exists() ? RESULT_ERROR : RESULT_NOT_FOUND), null);
+        }
+    }
+
+    private static String readDirect(String path) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(path);
+        try {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int length = 0;
+            int read;
+            while ((read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return new String(buffer, 0, length, UTF_8).trim();
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    private static void writeDirect(String path, String value) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(path);
+        try {
+            // a single write, some sysfs nodes do not accept partial values
+            outputStream.write(value.getBytes(UTF_8));
+        } finally {
+            closeQuietly(outputStream);
+        }
+    }
+
+    private static boolean isPermissionDenied(Exception exception) {
+        if (exception instanceof SecurityException) {
+            return true;
+        }
+        final String message = exception.getMessage();
+        return message != null && (message.contains("EACCES") || message.contains("EPERM")
+                                   || message.contains("Permission denied") || message.contains("Operation not permitted"));
+    }
+
+    /**
+     * @return The finished command, or null if there is no root shell
+     */
+    @Nullable private static Command executeAsRoot(Command command) {
+        if (RootShell.fireAndForget(command) == null) {
+            return null;
+        }
+        return command.waitFor();
+    }
+
+    /* package */ static String createToken() {
+        return "FileHelper" + Long.toHexString(sRandom.nextLong());
+    }
+
+    /**
+     * Runs the script through the root shell and fills in every path the script did not report on.
+     */
+    private static void executeBulkScript(String script, BulkConsumer consumer, Map<String, FileResult> results) {
+        final int timeout = Shell.DEFAULT_TIMEOUT + consumer.paths.size() * BULK_TIMEOUT_PER_FILE;
+        // tracked, so a timed out script gets killed and its variables stay out of the shell
+        final Command command = new Command(0, timeout, script)
+                .setOutputConsumer(consumer)
+                .setErrorType(Command.ERROR_NONE)
+                .setTracked(true);
+        final int missingResult = (executeAsRoot(command) != null ? RESULT_ERROR : RESULT_PERMISSION_DENIED);
+
+        // a terminated script may still be sending output, nothing of it may reach the results anymore
+        final FileResult[] scriptResults = consumer.detach();
+        for (int i = 0; i < scriptResults.length; i++) {
+            final String path = consumer.paths.get(i);
+            results.put(path, (scriptResults[i] != null ? scriptResults[i] : new FileResult(path, missingResult, null)));
+        }
+    }
+
+    private static boolean isSuccess(@Nullable Command command) {
+        return command != null && !command.isTerminated() && command.getExitCode() == 0;
+    }
+
+    /**
+     * @return The argument in single quotes, safe to pass to the shell as a single word
+     */
+    @NonNull private static String quote(@NonNull String argument) {
+        return '\'' + argument.replace("'", "'\\''") + '\'';
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Splits the output of a bulk script into the results of the files, as it arrives.
+     */
+    /* package */ static class BulkConsumer implements OutputConsumer {
+        private final String token;
+        private final List<String> paths;
+        private final boolean isRead;
+        private final StringBuilder content = new StringBuilder();
+
+        // guarded by the lock of the consumer, as the shell may still call it after the caller gave up
+        private final FileResult[] results;
+        private boolean isEnded;
+
+        /* package */ BulkConsumer(String token, List<String> paths, boolean isRead) {
+            this.token = token;
+            this.paths = paths;
+            this.isRead = isRead;
+            this.results = new FileResult[paths.size()];
+        }
+
+        /**
+         * Stops taking any further output.
+         *
+         * @return The results by the index of their path, null for the ones the script did not report
+         */
+        /* package */ synchronized FileResult[] detach() {
+            isEnded = true;
+            return results;
+        }
+
+        @Override public synchronized void onOutputLine(@NonNull String line) {
+            if (isEnded) {
+                return;
+            }
+            if (!line.startsWith(token)) {
+                if (content.length() > 0) {
+                    content.append('\n');
+                }
+                content.append(line);
+                return;
+            }
+
+            // <token> <index> <result>
+            final int indexStart = token.length() + 1;
+            final int indexEnd = line.indexOf(' ', indexStart);
+            try {
+                final int index = Integer.parseInt(line.substring(indexStart, indexEnd));
+                final String path = paths.get(index);
+                final int result = Integer.parseInt(line.substring(indexEnd + 1).trim());
+                if (result == RESULT_OK) {
+                    if (isRead) {
+                        sReadRoutes.put(path, ROUTE_ROOT);
+                    }
+                    results[index] = new FileResult(path, result, (isRead ? content.toString().trim() : null));
+                } else {
+                    results[index] = new FileResult(path, result, null);
+                }
+            } catch (IndexOutOfBoundsException | NumberFormatException ignored) { }
+            content.setLength(0);
+        }
+
+        @Override public synchronized void onOutputEnd() {
+            isEnded = true;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommandFutureTest {
+    private Shell shell;
+
+    @Before public void setUp() {
+        shell = ShellManager.get().setNormalShellExecutable("/bin/sh").getNormalShell();
+    }
+
+    @After public void tearDown() {
+        ShellManager.get().onDestroy();
+    }
+
+    @Test public void completesWithResult() throws Exception {
+        final CommandFuture future = shell.submitCommand(new Command("echo hello").setOutputType(Command.OUTPUT_STRING));
+        final CommandResult result = future.get(5, TimeUnit.SECONDS);
+        assertEquals("hello", result.getOutput());
+        assertEquals(0, result.getExitCode());
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+    }
+
+    @Test public void cancelsRunningCommand() throws Exception {
+        final CommandFuture future = shell.submitCommand(new Command(0, 0, "sleep 5").setTracked(true));
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("cancelled command returned a result");
+        } catch (CancellationException expected) { }
+
+        // the subshell got killed, the shell keeps working
+        final CommandResult result = shell.submitCommand(new Command("echo alive").setOutputType(Command.OUTPUT_STRING))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals("alive", result.getOutput());
+    }
+
+    @Test public void doesNotCancelFinishedCommand() throws Exception {
+        final CommandFuture future = shell.submitCommand(new Command("true"));
+        future.get(5, TimeUnit.SECONDS);
+        assertFalse(future.cancel(true));
+        assertFalse(future.isCancelled());
+        assertEquals(0, future.get().getExitCode());
+    }
+
+    @Test public void keepsResultWhichIsOnItsWay() throws Exception {
+        final AtomicBoolean cancelResult = new AtomicBoolean(true);
+        final Command command = new Command("echo done");
+        // the consumer gets told about the end after the command finished, but before its future completes
+        command.setOutputConsumer(new OutputConsumer() {
+            @Override public void onOutputLine(String line) { }
+
+            @Override public void onOutputEnd() {
+                cancelResult.set(command.getFuture().cancel(true));
+            }
+        });
+
+        final CommandFuture future = shell.submitCommand(command);
+        final CommandResult result = future.get(5, TimeUnit.SECONDS);
+        assertFalse(cancelResult.get());
+        assertFalse(future.isCancelled());
+        assertFalse(result.isTerminated());
+        assertEquals(0, result.getExitCode());
+    }
+}
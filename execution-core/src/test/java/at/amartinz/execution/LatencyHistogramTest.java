@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test public void startsEmpty() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test public void ignoresNegativeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+
+    @Test public void keepsSmallValuesExact() {
+        for (long value = 0; value < 8; value++) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(LatencyHistogram.MAX_VALUE);
+            assertEquals(value, histogram.snapshot().getValueAtPercentile(50));
+        }
+    }
+
+    @Test public void keepsRelativeErrorBelowOneEighth() {
+        // the upper bound of every bucket, as the recorded maximum does not cap the lower half
+        for (long value = 8; value < LatencyHistogram.MAX_VALUE / 2; value += Math.max(1, value / 7)) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(LatencyHistogram.MAX_VALUE);
+
+            final long upperBound = histogram.snapshot().getValueAtPercentile(50);
+            assertTrue(value + " reported as " + upperBound, upperBound >= value);
+            assertTrue(value + " reported as " + upperBound, upperBound - value < value / 8);
+        }
+    }
+
+    @Test public void separatesAdjacentBuckets() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        // 1024 to 1151 share a bucket, 1152 starts the next one
+        histogram.record(1024);
+        histogram.record(1151);
+        histogram.record(1152);
+        histogram.record(LatencyHistogram.MAX_VALUE);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1151, snapshot.getValueAtPercentile(25));
+        assertEquals(1151, snapshot.getValueAtPercentile(50));
+        assertEquals(1279, snapshot.getValueAtPercentile(75));
+    }
+
+    @Test public void capsPercentilesAtMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.snapshot().getValueAtPercentile(50));
+        assertEquals(1000, histogram.snapshot().getValueAtPercentile(100));
+    }
+
+    @Test public void countsLargeValuesInLastBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test public void calculatesPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+
+        final long median = snapshot.getValueAtPercentile(50);
+        assertTrue("median " + median, median >= 500 && median - 500 < 500 / 8);
+        final long p99 = snapshot.getValueAtPercentile(99);
+        assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+    }
+
+    @Test public void mergesSnapshots() {
+        final LatencyHistogram first = new LatencyHistogram();
+        final LatencyHistogram second = new LatencyHistogram();
+        first.record(10);
+        first.record(20);
+        second.record(5000);
+
+        final LatencyHistogram.Snapshot merged = first.snapshot().merge(second.snapshot());
+        assertEquals(3, merged.getCount());
+        assertEquals(5000, merged.getMax());
+        assertEquals(5030 / 3.0, merged.getMean(), 0.001);
+        assertEquals(5000, merged.getValueAtPercentile(100));
+        assertEquals(2, first.snapshot().getCount());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutputParserTest {
+    private static final String TOKEN = "Y#*N^W^T@#@G";
+
+    private RecordingCallback callback;
+    private OutputParser parser;
+
+    @Before public void setUp() {
+        callback = new RecordingCallback();
+        parser = new OutputParser(TOKEN, callback);
+    }
+
+    @Test public void splitsLines() {
+        feed("first\nsecond\n\nthird\r\n");
+        assertEvents("line:first", "line:second", "line:", "line:third");
+    }
+
+    @Test public void joinsLinesAcrossChunks() {
+        feed("hel", "lo\nwor", "ld", "\n");
+        assertEvents("line:hello", "line:world");
+    }
+
+    @Test public void joinsLinesLongerThanTheLineBuffer() {
+        final char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        final String longLine = new String(chars);
+        feed(longLine.substring(0, 300), longLine.substring(300), "\n");
+        assertEvents("line:" + longLine);
+    }
+
+    @Test public void processesLastLineOnFinish() {
+        feed("no newline");
+        assertEvents();
+
+        parser.finish();
+        assertEvents("line:no newline");
+    }
+
+    @Test public void parsesMarkers() {
+        feed("output\n" + TOKEN + " 3 0\n" + TOKEN + " 4 -1\n" + TOKEN + " 5 127\n");
+        assertEvents("line:output", "marker:3:0", "marker:4:-1", "marker:5:127");
+    }
+
+    @Test public void splitsMarkerSuffixFromOutput() {
+        // a command whose output does not end with a newline, gets the marker appended to its last line
+        feed("partial" + TOKEN + " 1 0\n");
+        assertEvents("line:partial", "marker:1:0");
+    }
+
+    @Test public void parsesMarkersSplitAcrossChunks() {
+        feedBytewise("a\n" + TOKEN + " 12 2\n");
+        assertEvents("line:a", "marker:12:2");
+    }
+
+    @Test public void ignoresMarkersWithoutId() {
+        feed(TOKEN + "\n" + TOKEN + " \n" + TOKEN + "x 1 0\n");
+        assertEvents();
+    }
+
+    @Test public void passesBinaryFramesThrough() {
+        // the frame contains newlines and even the token, which must not be parsed
+        final String data = "ab\n" + TOKEN + " 9 9\ncd";
+        feed(TOKEN + "+ 1 " + data.length() + "\n" + data + TOKEN + " 1 0\n");
+        assertEvents("binaryStart:1:" + data.length(), "binary:" + data, "marker:1:0");
+    }
+
+    @Test public void passesBinaryFramesSplitAcrossReads() {
+        final String data = "0123456789\n\n0123456789";
+        final String output = TOKEN + "+ 2 " + data.length() + "\n" + data + TOKEN + " 2 0\n";
+        feedBytewise(output);
+        assertEvents("binaryStart:2:" + data.length(), "binary:" + data, "marker:2:0");
+
+        callback.events.clear();
+        feed(output.substring(0, 10), output.substring(10, output.length() - 20), output.substring(output.length() - 20));
+        assertEvents("binaryStart:2:" + data.length(), "binary:" + data, "marker:2:0");
+    }
+
+    @Test public void acceptsPaddedBinaryLength() {
+        feed(TOKEN + "+ 3      4\nabcd" + TOKEN + " 3 0\n");
+        assertEvents("binaryStart:3:4", "binary:abcd", "marker:3:0");
+    }
+
+    @Test public void endsEmptyBinaryFrameRightAway() {
+        feed(TOKEN + "+ 4 0\n" + TOKEN + " 4 0\n");
+        assertEvents("binaryStart:4:0", "binary:", "marker:4:0");
+    }
+
+    @Test public void ignoresBinaryHeaderWithoutLength() {
+        // wc did not report anything, the following output is parsed as usual
+        feed(TOKEN + "+ 5 \n" + TOKEN + "+ 5\nline\n" + TOKEN + " 5 0\n");
+        assertEvents("line:line", "marker:5:0");
+    }
+
+    @Test public void parsesProcessHeaders() {
+        feed(TOKEN + "- 6 1234\nerror\n" + TOKEN + " 6 0\n");
+        assertEvents("process:6:1234", "line:error", "marker:6:0");
+    }
+
+    @Test public void ignoresProcessHeadersWithoutPid() {
+        feed(TOKEN + "- 7\n" + TOKEN + "- 7 \n" + TOKEN + "- 7 0\n" + TOKEN + "- 7 12x\n");
+        assertEvents();
+    }
+
+    private void feed(String... chunks) {
+        for (final String chunk : chunks) {
+            final byte[] bytes = chunk.getBytes(IoUtils.UTF_8);
+            // an offset within a larger buffer, like the read buffer of the shell
+            final byte[] buffer = new byte[bytes.length + 4];
+            System.arraycopy(bytes, 0, buffer, 2, bytes.length);
+            parser.feed(buffer, 2, bytes.length);
+        }
+    }
+
+    private void feedBytewise(String output) {
+        final byte[] bytes = output.getBytes(IoUtils.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            parser.feed(bytes, i, 1);
+        }
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), callback.events);
+    }
+
+    private static class RecordingCallback implements OutputParser.Callback {
+        private final List<String> events = new ArrayList<>();
+        private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+        @Override public void onLine(byte[] buffer, int offset, int length) {
+            events.add("line:" + new String(buffer, offset, length, IoUtils.UTF_8));
+        }
+
+        @Override public void onMarker(int id, int exitCode) {
+            events.add("marker:" + id + ':' + exitCode);
+        }
+
+        @Override public void onProcessStarted(int id, int pid) {
+            events.add("process:" + id + ':' + pid);
+        }
+
+        @Override public void onBinaryStart(int id, long length) {
+            events.add("binaryStart:" + id + ':' + length);
+            binary.reset();
+        }
+
+        @Override public void onBinaryData(byte[] buffer, int offset, int length) {
+            binary.write(buffer, offset, length);
+        }
+
+        @Override public void onBinaryEnd() {
+            events.add("binary:" + new String(binary.toByteArray(), IoUtils.UTF_8));
+        }
+    }
+}
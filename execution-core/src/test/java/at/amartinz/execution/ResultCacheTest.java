@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+    private Shell shell;
+    private File file;
+
+    @Before public void setUp() throws IOException {
+        shell = ShellManager.get().setNormalShellExecutable("/bin/sh").getNormalShell();
+        file = File.createTempFile("ResultCacheTest", "");
+        ResultCache.get().invalidateAll();
+    }
+
+    @After public void tearDown() {
+        ShellManager.get().onDestroy();
+        ResultCache.get().invalidateAll();
+        ResultCache.get().setMaxEntries(ResultCache.DEFAULT_MAX_ENTRIES);
+        assertTrue(file.delete());
+    }
+
+    @Test public void answersFromCache() throws Exception {
+        writeFile("first");
+        assertEquals("first", read(60000).getOutput());
+
+        writeFile("second");
+        final long hits = ResultCache.get().getHitCount();
+        final CommandResult cached = read(60000);
+        assertEquals("first", cached.getOutput());
+        assertEquals(0, cached.getExitCode());
+        assertFalse(cached.isTerminated());
+        assertEquals(hits + 1, ResultCache.get().getHitCount());
+    }
+
+    @Test public void expiresAfterTtl() throws Exception {
+        writeFile("first");
+        assertEquals("first", read(100).getOutput());
+
+        writeFile("second");
+        Thread.sleep(200);
+        assertEquals("second", read(100).getOutput());
+    }
+
+    @Test public void doesNotCacheWithoutTtl() throws Exception {
+        writeFile("first");
+        assertEquals("first", read(0).getOutput());
+        writeFile("second");
+        assertEquals("second", read(0).getOutput());
+        assertEquals(0, ResultCache.get().size());
+    }
+
+    @Test public void doesNotCacheFailures() throws Exception {
+        final CommandResult result = shell.submitCommand(new Command("cat /nonexistent/file").setCacheTtl(60000))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(1, result.getExitCode());
+        assertEquals(0, ResultCache.get().size());
+    }
+
+    @Test public void keysByOutputType() throws Exception {
+        writeFile("first");
+        assertEquals("first", read(60000).getOutput());
+
+        writeFile("second");
+        final CommandResult listResult = shell.submitCommand(new Command("cat " + file.getPath())
+                .setOutputType(Command.OUTPUT_LIST).setCacheTtl(60000)).get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("second"), listResult.getOutputList());
+    }
+
+    @Test public void evictsLeastRecentlyUsed() throws Exception {
+        ResultCache.get().setMaxEntries(2);
+        execute("echo a");
+        execute("echo b");
+        // touching a makes b the least recently used one
+        execute("echo a");
+        execute("echo c");
+        assertEquals(2, ResultCache.get().size());
+
+        final long hits = ResultCache.get().getHitCount();
+        execute("echo a");
+        assertEquals(hits + 1, ResultCache.get().getHitCount());
+        execute("echo b");
+        assertEquals(hits + 1, ResultCache.get().getHitCount());
+    }
+
+    @Test public void shrinksWhenLimitIsLowered() throws Exception {
+        execute("echo a");
+        execute("echo b");
+        execute("echo c");
+        ResultCache.get().setMaxEntries(1);
+        assertEquals(1, ResultCache.get().size());
+    }
+
+    @Test public void invalidatesCommand() throws Exception {
+        writeFile("first");
+        assertEquals("first", read(60000).getOutput());
+
+        writeFile("second");
+        ResultCache.get().invalidate("cat " + file.getPath());
+        assertEquals("second", read(60000).getOutput());
+    }
+
+    private CommandResult read(long ttl) throws Exception {
+        return shell.submitCommand(new Command("cat " + file.getPath())
+                .setOutputType(Command.OUTPUT_STRING).setCacheTtl(ttl)).get(5, TimeUnit.SECONDS);
+    }
+
+    private void execute(String command) throws Exception {
+        shell.submitCommand(new Command(command).setOutputType(Command.OUTPUT_STRING).setCacheTtl(60000))
+                .get(5, TimeUnit.SECONDS);
+    }
+
+    private void writeFile(String content) throws IOException {
+        final FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShellSamplerTest {
+    private final BlockingQueue<Sample> samples = new LinkedBlockingQueue<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ShellSampler.Listener listener = new ShellSampler.Listener() {
+        @Override public void onSample(String[] values, boolean[] changed) {
+            // the arrays get reused
+            samples.add(new Sample(values.clone(), changed.clone()));
+        }
+
+        @Override public void onStopped() {
+            stopped.countDown();
+        }
+    };
+
+    private File directory;
+    private File file;
+    private ShellSampler sampler;
+
+    @Before public void setUp() throws IOException {
+        ShellManager.get().setNormalShellExecutable("/bin/sh");
+        directory = File.createTempFile("ShellSamplerTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        file = new File(directory, "value");
+        write(file, "1\n");
+    }
+
+    @After public void tearDown() {
+        if (sampler != null) {
+            sampler.stop();
+        }
+        ShellManager.get().onDestroy();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                assertTrue(child.delete());
+            }
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test public void reportsEveryRoundWithoutSuppression() throws Exception {
+        start(false);
+
+        Sample sample = nextSample();
+        assertArrayEquals(new String[]{ "1", null }, sample.values);
+        assertArrayEquals(new boolean[]{ true, true }, sample.changed);
+        sample = nextSample();
+        assertArrayEquals(new String[]{ "1", null }, sample.values);
+        assertArrayEquals(new boolean[]{ false, false }, sample.changed);
+
+        write(file, "2\n");
+        while ("1".equals((sample = nextSample()).values[0])) {
+            assertArrayEquals(new boolean[]{ false, false }, sample.changed);
+        }
+        assertArrayEquals(new String[]{ "2", null }, sample.values);
+        assertArrayEquals(new boolean[]{ true, false }, sample.changed);
+    }
+
+    @Test public void reportsOnlyChangesWithSuppression() throws Exception {
+        start(true);
+
+        Sample sample = nextSample();
+        assertArrayEquals(new String[]{ "1", null }, sample.values);
+        assertArrayEquals(new boolean[]{ true, true }, sample.changed);
+
+        write(file, "2\n");
+        sample = nextSample();
+        assertArrayEquals(new String[]{ "2", null }, sample.values);
+        assertArrayEquals(new boolean[]{ true, false }, sample.changed);
+    }
+
+    @Test public void sleepsFractionsOfSeconds() throws Exception {
+        start(false);
+        nextSample();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            nextSample();
+        }
+        // rounded up to full seconds this would take at least 5 seconds
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+    }
+
+    @Test public void changesIntervalWhileRunning() throws Exception {
+        start(false);
+        nextSample();
+
+        sampler.setInterval(60000);
+        // the round which is already sleeping still uses the old interval
+        Thread.sleep(500);
+        samples.clear();
+        assertNull(samples.poll(500, TimeUnit.MILLISECONDS));
+
+        assertTrue(sampler.isRunning());
+    }
+
+    @Test public void reportsStop() throws Exception {
+        start(true);
+        nextSample();
+        sampler.stop();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertFalse(sampler.isRunning());
+    }
+
+    private void start(boolean suppressUnchanged) {
+        sampler = new ShellSampler(false, Arrays.asList(file.getPath(), new File(directory, "missing").getPath()),
+                50, listener)
+                .setSuppressUnchanged(suppressUnchanged)
+                .setControlDirectory(directory);
+        assertTrue(sampler.start());
+    }
+
+    private Sample nextSample() throws InterruptedException {
+        final Sample sample = samples.poll(5, TimeUnit.SECONDS);
+        assertNotNull(sample);
+        return sample;
+    }
+
+    private void write(File target, String content) throws IOException {
+        // renamed into place, so the shell never reads a half written file
+        final File temporary = new File(directory, target.getName() + ".tmp");
+        final FileOutputStream outputStream = new FileOutputStream(temporary);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        assertTrue(temporary.renameTo(target));
+    }
+
+    private static class Sample {
+        private final String[] values;
+        private final boolean[] changed;
+
+        private Sample(String[] values, boolean[] changed) {
+            this.values = values;
+            this.changed = changed;
+        }
+    }
+}
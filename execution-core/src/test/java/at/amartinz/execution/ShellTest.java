@@ -0,0 +1,339 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShellTest {
+    private Shell shell;
+
+    @Before public void setUp() {
+        shell = ShellManager.get().setNormalShellExecutable("/bin/sh").getNormalShell();
+    }
+
+    @After public void tearDown() {
+        ShellManager.get().onDestroy();
+    }
+
+    @Test public void completesBatchedCommandsIndividually() throws Exception {
+        final List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            commands.add(new Command("echo " + i + "; (exit " + (i % 3) + ")").setOutputType(Command.OUTPUT_STRING));
+        }
+
+        final List<CommandFuture> futures = shell.submitBatch(commands);
+        assertEquals(commands.size(), futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            final CommandResult result = futures.get(i).get(5, TimeUnit.SECONDS);
+            assertEquals(commands.get(i), futures.get(i).getCommand());
+            assertEquals(String.valueOf(i), result.getOutput());
+            assertEquals(i % 3, result.getExitCode());
+        }
+    }
+
+    @Test public void writesBatchLargerThanTheWindow() throws Exception {
+        shell.setMaxInFlight(2);
+        final List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            commands.add(new Command("echo " + i).setOutputType(Command.OUTPUT_STRING));
+        }
+
+        final List<CommandFuture> futures = shell.submitBatch(commands);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(String.valueOf(i), futures.get(i).get(5, TimeUnit.SECONDS).getOutput());
+        }
+    }
+
+    @Test public void skipsCancelledCommandOfBatch() throws Exception {
+        shell.setMaxInFlight(1);
+        final CommandFuture blocker = shell.submitCommand(new Command("sleep 0.3"));
+
+        final List<Command> commands = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            commands.add(new Command("echo " + i).setOutputType(Command.OUTPUT_STRING));
+        }
+        final List<CommandFuture> futures = shell.submitBatch(commands);
+        assertTrue(futures.get(1).cancel(true));
+
+        blocker.get(5, TimeUnit.SECONDS);
+        assertEquals("0", futures.get(0).get(5, TimeUnit.SECONDS).getOutput());
+        assertEquals("2", futures.get(2).get(5, TimeUnit.SECONDS).getOutput());
+        assertTrue(futures.get(1).isCancelled());
+        assertFalse(futures.get(0).isCancelled());
+    }
+
+    @Test public void acceptsEmptyBatch() {
+        assertTrue(shell.submitBatch(new ArrayList<Command>()).isEmpty());
+    }
+
+    @Test public void doesNotLingerOnIdleShell() throws Exception {
+        shell.setLinger(TimeUnit.SECONDS.toMicros(5), 100);
+        final long start = System.nanoTime();
+        shell.submitCommand(new Command("true")).get(5, TimeUnit.SECONDS);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "ms", elapsed < 2000);
+    }
+
+    @Test public void flushesOnceEnoughCommandsAreLingering() throws Exception {
+        shell.setLinger(TimeUnit.SECONDS.toMicros(5), 5);
+        final long start = System.nanoTime();
+        shell.submitCommand(new Command("sleep 0.2"));
+
+        final List<CommandFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(shell.submitCommand(new Command("echo " + i).setOutputType(Command.OUTPUT_STRING)));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(String.valueOf(i), futures.get(i).get(5, TimeUnit.SECONDS).getOutput());
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "ms", elapsed < 4000);
+    }
+
+    @Test public void coalescesCommandsOfConcurrentCallers() throws Exception {
+        shell.setLinger(1000, 16);
+        final int threadCount = 8;
+        final int commandCount = 25;
+        final List<CommandFuture> futures = Collections.synchronizedList(new ArrayList<CommandFuture>());
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            final Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int i = 0; i < commandCount; i++) {
+                        final String value = threadIndex + "-" + i;
+                        futures.add(shell.submitCommand(new Command("echo " + value)
+                                .setOutputType(Command.OUTPUT_STRING)));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startLatch.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threadCount * commandCount, futures.size());
+        for (final CommandFuture future : futures) {
+            final CommandResult result = future.get(5, TimeUnit.SECONDS);
+            assertEquals(0, result.getExitCode());
+            assertEquals(future.getCommand().getCommands()[0].substring("echo ".length()), result.getOutput());
+        }
+    }
+
+    @Test public void returnsRawBytesOfBinaryCommand() throws Exception {
+        final StringBuilder format = new StringBuilder();
+        final byte[] expected = new byte[256];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+            format.append(String.format("\\%03o", i));
+        }
+
+        final CommandResult result = shell.submitCommand(new Command("printf '" + format + "'")
+                .setOutputType(Command.OUTPUT_BINARY)).get(5, TimeUnit.SECONDS);
+        assertEquals(0, result.getExitCode());
+        assertArrayEquals(expected, toBytes(result.getOutputBuffer()));
+    }
+
+    @Test public void passesMarkersInBinaryOutputThrough() throws Exception {
+        // output which looks like the protocol of the shell, must end up in the buffer untouched
+        final String output = "a\nY#*N^W^T@#@G 0 0\nY#*N^W^T@#@G+ 1 5\nb";
+        final CommandResult result = shell.submitCommand(new Command("printf '%s' '" + output + "'")
+                .setOutputType(Command.OUTPUT_BINARY)).get(5, TimeUnit.SECONDS);
+        assertEquals(output, new String(toBytes(result.getOutputBuffer()), "UTF-8"));
+
+        // the shell keeps working after it
+        assertEquals("next", shell.submitCommand(new Command("echo next").setOutputType(Command.OUTPUT_STRING))
+                .get(5, TimeUnit.SECONDS).getOutput());
+    }
+
+    @Test public void returnsLargeBinaryOutput() throws Exception {
+        final int length = 300000;
+        final CommandResult result = shell.submitCommand(new Command("head -c " + length + " /dev/zero | tr '\\0' 'x'")
+                .setOutputType(Command.OUTPUT_BINARY).setUseDirectBuffer(true)).get(5, TimeUnit.SECONDS);
+
+        final ByteBuffer buffer = result.getOutputBuffer();
+        assertTrue(buffer.isDirect());
+        final byte[] expected = new byte[length];
+        Arrays.fill(expected, (byte) 'x');
+        assertArrayEquals(expected, toBytes(buffer));
+    }
+
+    @Test public void keepsExitCodeOfBinaryCommand() throws Exception {
+        final CommandResult result = shell.submitCommand(new Command("printf abc; (exit 3)")
+                .setOutputType(Command.OUTPUT_BINARY)).get(5, TimeUnit.SECONDS);
+        assertEquals(3, result.getExitCode());
+        assertArrayEquals("abc".getBytes("UTF-8"), toBytes(result.getOutputBuffer()));
+    }
+
+    @Test public void fallsBackToWritableTempDirectory() throws Exception {
+        shell.setBinaryTempDirectory("/nonexistent/execution");
+        final CommandResult result = shell.submitCommand(new Command("printf abc")
+                .setOutputType(Command.OUTPUT_BINARY)).get(5, TimeUnit.SECONDS);
+        assertFalse(result.isTerminated());
+        assertArrayEquals("abc".getBytes("UTF-8"), toBytes(result.getOutputBuffer()));
+    }
+
+    @Test public void drainsHigherLanesFirst() throws Exception {
+        shell.setMaxInFlight(1);
+        awaitExecuting(shell.submitCommand(new Command("sleep 0.3")));
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final List<CommandFuture> futures = new ArrayList<>();
+        futures.add(submitRecorded("bulk", Command.PRIORITY_BULK, order));
+        futures.add(submitRecorded("normal", Command.PRIORITY_NORMAL, order));
+        futures.add(submitRecorded("interactive", Command.PRIORITY_INTERACTIVE, order));
+        for (final CommandFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("interactive", "normal", "bulk"), order);
+    }
+
+    @Test public void servesStarvedBulkLane() throws Exception {
+        shell.setMaxInFlight(1);
+        awaitExecuting(shell.submitCommand(new Command("sleep 0.3")));
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final List<CommandFuture> futures = new ArrayList<>();
+        futures.add(submitRecorded("bulk", Command.PRIORITY_BULK, order));
+        for (int i = 0; i < 40; i++) {
+            futures.add(submitRecorded("interactive" + i, Command.PRIORITY_INTERACTIVE, order));
+        }
+        for (final CommandFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // passed over 16 times in a row, then it gets its turn
+        assertEquals(16, order.indexOf("bulk"));
+    }
+
+    @Test public void sharesStateOfUntrackedCommands() throws Exception {
+        shell.submitCommand(new Command("__shell_test_value=5")).get(5, TimeUnit.SECONDS);
+        assertEquals("5", shell.submitCommand(new Command("echo $__shell_test_value")
+                .setOutputType(Command.OUTPUT_STRING)).get(5, TimeUnit.SECONDS).getOutput());
+    }
+
+    @Test public void keepsStateOfTrackedCommandsInSubshell() throws Exception {
+        shell.submitCommand(new Command("__shell_test_value=5").setTracked(true)).get(5, TimeUnit.SECONDS);
+        assertEquals("", shell.submitCommand(new Command("echo \"$__shell_test_value\"")
+                .setOutputType(Command.OUTPUT_STRING)).get(5, TimeUnit.SECONDS).getOutput());
+    }
+
+    @Test public void killsTrackedCommandWithItsChildren() throws Exception {
+        // an unusual duration, so the process can be told apart from others
+        final String sleep = "sleep 31.7";
+        final CommandFuture future = shell.submitCommand(new Command(0, 0, sleep + "; echo done").setTracked(true));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!isProcessRunning(sleep) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(isProcessRunning(sleep));
+
+        assertTrue(future.cancel(true));
+        while (isProcessRunning(sleep) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(isProcessRunning(sleep));
+        assertEquals("alive", shell.submitCommand(new Command("echo alive").setOutputType(Command.OUTPUT_STRING))
+                .get(5, TimeUnit.SECONDS).getOutput());
+    }
+
+    private static boolean isProcessRunning(String commandLine) {
+        final File[] processes = new File("/proc").listFiles();
+        if (processes == null) {
+            return false;
+        }
+        final byte[] buffer = new byte[256];
+        for (final File process : processes) {
+            if (!Character.isDigit(process.getName().charAt(0))) {
+                continue;
+            }
+            try {
+                final FileInputStream inputStream = new FileInputStream(new File(process, "cmdline"));
+                try {
+                    final int read = inputStream.read(buffer);
+                    if (read > 0 && new String(buffer, 0, read, "UTF-8").replace('\0', ' ').trim().equals(commandLine)) {
+                        return true;
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException ignored) {
+                // the process is gone already
+            }
+        }
+        return false;
+    }
+
+    private CommandFuture submitRecorded(final String name, int priority, final List<String> order) {
+        return shell.submitCommand(new Command("true").setPriority(priority)).addCallback(new CommandFuture.Callback() {
+            @Override public void onCommandResult(CommandResult result) {
+                order.add(name);
+            }
+        });
+    }
+
+    private static void awaitExecuting(CommandFuture future) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!future.getCommand().isExecuting() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(future.getCommand().isExecuting());
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.rewind();
+        final byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutWheelTest {
+    private Shell shell;
+
+    @Before public void setUp() {
+        shell = ShellManager.get().setNormalShellExecutable("/bin/sh").getNormalShell();
+    }
+
+    @After public void tearDown() {
+        ShellManager.get().onDestroy();
+    }
+
+    @Test public void terminatesTimedOutCommand() throws Exception {
+        final long start = System.nanoTime();
+        final CommandResult result = shell.submitCommand(new Command(0, 200, "sleep 5").setTracked(true))
+                .get(5, TimeUnit.SECONDS);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(result.isTerminated());
+        assertEquals("Timeout exception", result.getTerminationReason());
+        assertTrue("timed out after " + elapsed + "ms", elapsed >= 200 && elapsed < 2000);
+    }
+
+    @Test public void keepsFinishedCommand() throws Exception {
+        final Command command = new Command(0, 300, "true");
+        shell.submitCommand(command).get(5, TimeUnit.SECONDS);
+
+        // the timeout passes, after the command finished
+        Thread.sleep(600);
+        assertFalse(command.isTerminated());
+        assertEquals(0, command.getExitCode());
+    }
+
+    @Test public void ignoresStaleTimeoutOfReusedCommand() throws Exception {
+        // the second execution is still running, when the timeout of the first one comes up
+        final Command command = new Command(0, 500, "sleep $__timeout_test_delay");
+        shell.submitCommand(new Command("__timeout_test_delay=0.1")).get(5, TimeUnit.SECONDS);
+        assertFalse(shell.submitCommand(command).get(5, TimeUnit.SECONDS).isTerminated());
+
+        shell.submitCommand(new Command("__timeout_test_delay=0.45")).get(5, TimeUnit.SECONDS);
+        assertFalse(shell.submitCommand(command).get(5, TimeUnit.SECONDS).isTerminated());
+    }
+
+    @Test public void usesSingleThreadForAllTimeouts() throws Exception {
+        final List<CommandFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(shell.submitCommand(new Command(0, 200, "sleep 5").setTracked(true)));
+        }
+
+        int maxCallbackThreads = 0;
+        for (final CommandFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+            maxCallbackThreads = Math.max(maxCallbackThreads, countThreads("Shell timeout callbacks"));
+        }
+        for (final CommandFuture future : futures) {
+            assertTrue(future.getCommand().isTerminated());
+        }
+        assertEquals(1, countThreads("Shell timeout wheel"));
+        assertTrue("callback threads: " + maxCallbackThreads, maxCallbackThreads <= 1);
+    }
+
+    @Test public void releasesFinishedCommand() throws Exception {
+        Command command = new Command(0, Shell.DEFAULT_TIMEOUT, "true");
+        final WeakReference<Command> reference = new WeakReference<>(command);
+        shell.submitCommand(command).get(5, TimeUnit.SECONDS);
+        command = null;
+
+        // the timeout is far away, its entry must not keep the command alive until then
+        for (int i = 0; i < 20 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertNull(reference.get());
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016 Alexander Martinz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package at.amartinz.execution.helper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import at.amartinz.execution.OutputConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileHelperTest {
+    private File directory;
+
+    @Before public void setUp() throws IOException {
+        directory = File.createTempFile("FileHelperTest", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(directory.delete());
+        FileHelper.forgetRoutes();
+    }
+
+    @Test public void readsFileWithoutWhitespace() throws IOException {
+        final File file = createFile("value", "  1200000\n");
+        assertEquals("1200000", FileHelper.readFile(file.getPath()));
+    }
+
+    @Test public void readsFilesLargerThanTheReadBuffer() throws IOException {
+        final StringBuilder content = new StringBuilder();
+        while (content.length() < 10000) {
+            content.append("0123456789");
+        }
+        final File file = createFile("large", content.toString());
+        assertEquals(content.toString(), FileHelper.readFile(file.getPath()));
+    }
+
+    @Test public void readsMissingFileAsNull() {
+        assertNull(FileHelper.readFile(new File(directory, "missing").getPath()));
+    }
+
+    @Test public void readsFilesInOrderAndOnce() throws IOException {
+        final String first = createFile("first", "1\n").getPath();
+        final String missing = new File(directory, "missing").getPath();
+        final String last = createFile("last", "3\n").getPath();
+
+        final Map<String, FileHelper.FileResult> results =
+                FileHelper.readFiles(Arrays.asList(first, missing, last, first));
+        assertEquals(Arrays.asList(first, missing, last), new ArrayList<>(results.keySet()));
+        assertEquals(FileHelper.RESULT_OK, results.get(first).result);
+        assertEquals("1", results.get(first).content);
+        assertEquals(FileHelper.RESULT_NOT_FOUND, results.get(missing).result);
+        assertNull(results.get(missing).content);
+        assertEquals("3", results.get(last).content);
+    }
+
+    @Test public void readScriptReportsEveryFile() throws Exception {
+        final List<String> paths = Arrays.asList(
+                createFile("lines", "  first line\nsecond line\n").getPath(),
+                createFile("unterminated", "42").getPath(),
+                createFile("empty", "").getPath(),
+                new File(directory, "missing").getPath(),
+                directory.getPath());
+
+        final String token = FileHelper.createToken();
+        final FileHelper.BulkConsumer consumer = new FileHelper.BulkConsumer(token, paths, true);
+        runScript(FileHelper.createReadScript(token, paths), consumer);
+
+        final FileHelper.FileResult[] results = consumer.detach();
+        assertEquals(FileHelper.RESULT_OK, results[0].result);
+        assertEquals("first line\nsecond line", results[0].content);
+        assertEquals(FileHelper.RESULT_OK, results[1].result);
+        assertEquals("42", results[1].content);
+        assertEquals(FileHelper.RESULT_OK, results[2].result);
+        assertEquals("", results[2].content);
+        assertEquals(FileHelper.RESULT_NOT_FOUND, results[3].result);
+        assertNull(results[3].content);
+        assertEquals(FileHelper.RESULT_ERROR, results[4].result);
+        assertNull(results[4].content);
+    }
+
+    @Test public void leavesUnreportedFilesOfReadScriptEmpty() throws Exception {
+        final List<String> paths = Arrays.asList(
+                createFile("first", "1").getPath(),
+                createFile("last", "2").getPath());
+
+        // as if the shell died after the first file
+        final String token = FileHelper.createToken();
+        final FileHelper.BulkConsumer consumer = new FileHelper.BulkConsumer(token, paths, true);
+        runScript(FileHelper.createReadScript(token, paths.subList(0, 1)), consumer);
+
+        final FileHelper.FileResult[] results = consumer.detach();
+        assertEquals("1", results[0].content);
+        assertNull(results[1]);
+    }
+
+    @Test public void writesValueAsIs() throws IOException {
+        final File file = createFile("value", "0");
+        assertTrue(FileHelper.writeFile(file.getPath(), "1"));
+        assertEquals("1", FileHelper.readFile(file.getPath()));
+        assertEquals(1, file.length());
+    }
+
+    @Test public void doesNotCreateMissingFile() {
+        final File file = new File(directory, "missing");
+        assertFalse(FileHelper.writeFile(file.getPath(), "1"));
+        assertFalse(file.exists());
+    }
+
+    @Test public void writesFilesInOrder() throws IOException {
+        final LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < 5; i++) {
+            values.put(createFile("value" + i, "0").getPath(), String.valueOf(i + 1));
+        }
+
+        final Map<String, FileHelper.FileResult> results = FileHelper.writeFiles(values);
+        assertEquals(new ArrayList<>(values.keySet()), new ArrayList<>(results.keySet()));
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            assertEquals(FileHelper.RESULT_OK, results.get(entry.getKey()).result);
+            assertEquals(entry.getValue(), FileHelper.readFile(entry.getKey()));
+        }
+    }
+
+    @Test public void reportsMissingFileOfBulkWrite() throws IOException {
+        final String first = createFile("first", "0").getPath();
+        final File typo = new File(directory, "tpyo");
+        final String last = createFile("last", "0").getPath();
+
+        final LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        values.put(first, "1");
+        values.put(typo.getPath(), "2");
+        values.put(last, "3");
+
+        final Map<String, FileHelper.FileResult> results = FileHelper.writeFiles(values);
+        assertEquals(Arrays.asList(first, typo.getPath(), last), new ArrayList<>(results.keySet()));
+        assertEquals(FileHelper.RESULT_OK, results.get(first).result);
+        assertEquals(FileHelper.RESULT_NOT_FOUND, results.get(typo.getPath()).result);
+        assertEquals(FileHelper.RESULT_OK, results.get(last).result);
+        assertFalse(typo.exists());
+        assertEquals("3", FileHelper.readFile(last));
+    }
+
+    @Test public void writeScriptReportsEveryFile() throws Exception {
+        final File file = createFile("value", "0");
+        final File missing = new File(directory, "missing");
+        final LinkedHashMap<String, String> values = new LinkedHashMap<>();
+        values.put(file.getPath(), "it's $HOME");
+        values.put(missing.getPath(), "1");
+        values.put(directory.getPath(), "2");
+        final List<String> paths = new ArrayList<>(values.keySet());
+
+        final String token = FileHelper.createToken();
+        final FileHelper.BulkConsumer consumer = new FileHelper.BulkConsumer(token, paths, false);
+        runScript(FileHelper.createWriteScript(token, paths, values), consumer);
+
+        final FileHelper.FileResult[] results = consumer.detach();
+        assertEquals(FileHelper.RESULT_OK, results[0].result);
+        assertEquals("it's $HOME", FileHelper.readFile(file.getPath()));
+        assertEquals(FileHelper.RESULT_NOT_FOUND, results[1].result);
+        assertFalse(missing.exists());
+        assertEquals(FileHelper.RESULT_ERROR, results[2].result);
+    }
+
+    private static void runScript(String script, OutputConsumer consumer) throws Exception {
+        final Process process = new ProcessBuilder("/bin/sh", "-c", script)
+                .redirectError(new File("/dev/null"))
+                .start();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.onOutputLine(line);
+            }
+        } finally {
+            reader.close();
+        }
+        consumer.onOutputEnd();
+        assertEquals(0, process.waitFor());
+    }
+
+    private File createFile(String name, String content) throws IOException {
+        final File file = new File(directory, name);
+        final FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+}
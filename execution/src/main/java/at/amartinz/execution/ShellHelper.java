@@ -35,6 +35,8 @@ import java.util.Collections;
 import java.util.List;
 
 public class ShellHelper {
+    // the location of busybox does not change while we are running, no need to ask the shell every time
+    private static final long WHICH_CACHE_TTL = 60 * 1000;
 
     @Nullable public static String findBinary(@NonNull String binaryName) {
         return findBinary(binaryName, null);
@@ -76,9 +78,10 @@ public class ShellHelper {
         }
 
 
+        final Command whichCommand = new Command("which busybox").setCacheTtl(WHICH_CACHE_TTL);
         final String busybox = RootCheck.isRooted()
-                ? RootShell.fireAndBlockString("which busybox")
-                : NormalShell.fireAndBlockString("which busybox");
+                ? RootShell.fireAndBlockString(whichCommand)
+                : NormalShell.fireAndBlockString(whichCommand);
         if (!TextUtils.isEmpty(busybox) && busybox.endsWith("/busybox")) {
             foundLocations.add(0, busybox.trim());
         }
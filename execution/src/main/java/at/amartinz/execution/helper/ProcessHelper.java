@@ -1,10 +1,21 @@
 package at.amartinz.execution.helper;
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import at.amartinz.execution.Command;
 import at.amartinz.execution.NormalShell;
+import at.amartinz.execution.OutputConsumer;
+import at.amartinz.execution.RootShell;
 
 /**
  * Created by amartinz on 06.09.16.
@@ -13,6 +24,120 @@ import at.amartinz.execution.NormalShell;
 public class ProcessHelper {
     public static final int INVALID = -1;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // /proc/<pid>/status is around 1.5KB, everything we need is at its start
+    private static final int STATUS_BUFFER_SIZE = 4096;
+
+    private static final byte[] KEY_NAME = "Name:".getBytes(UTF_8);
+    private static final byte[] KEY_STATE = "State:".getBytes(UTF_8);
+    private static final byte[] KEY_PARENT_PID = "PPid:".getBytes(UTF_8);
+    private static final byte[] KEY_UID = "Uid:".getBytes(UTF_8);
+
+    private static volatile ProcessSnapshot sCachedSnapshot;
+
+    /**
+     * Pid, uid, parent pid, name and state of all processes at a single point in time, sorted by pid.
+     */
+    public static class ProcessSnapshot {
+        /**
+         * When the snapshot got taken, via {@link System#nanoTime()}
+         */
+        public final long time;
+
+        private final int size;
+        private final int[] pids;
+        private final int[] uids;
+        private final int[] parentPids;
+        private final char[] states;
+        private final String[] names;
+
+        private ProcessSnapshot(long time, int size, int[] pids, int[] uids, int[] parentPids, char[] states,
+                String[] names) {
+            this.time = time;
+            this.size = size;
+            this.pids = pids;
+            this.uids = uids;
+            this.parentPids = parentPids;
+            this.states = states;
+            this.names = names;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The index of the process, or {@link #INVALID} if it is not part of the snapshot
+         */
+        public int indexOf(int pid) {
+            final int index = Arrays.binarySearch(pids, 0, size, pid);
+            return (index >= 0 ? index : INVALID);
+        }
+
+        public int getPid(int index) {
+            return pids[index];
+        }
+
+        public int getUid(int index) {
+            return uids[index];
+        }
+
+        public int getParentPid(int index) {
+            return parentPids[index];
+        }
+
+        /**
+         * @return The state as shown by ps, for example 'R' for running or 'S' for sleeping
+         */
+        public char getState(int index) {
+            return states[index];
+        }
+
+        @NonNull public String getName(int index) {
+            return names[index];
+        }
+
+        /**
+         * @return The uid of the process, or {@link #INVALID} if it is not part of the snapshot
+         */
+        public int getUidOfPid(int pid) {
+            final int index = indexOf(pid);
+            return (index != INVALID ? uids[index] : INVALID);
+        }
+    }
+
+    /**
+     * @see #getProcessSnapshot(long)
+     */
+    @NonNull public static ProcessSnapshot getProcessSnapshot() {
+        return getProcessSnapshot(0);
+    }
+
+    /**
+     * Reads all processes in one pass. /proc is walked directly, if the processes of other apps are
+     * visible. Otherwise they are read with a single command through the root shell, if available.
+     *
+     * @param maxAge The age in milliseconds up to which the last snapshot gets reused, 0 always takes a new one
+     */
+    @NonNull public static ProcessSnapshot getProcessSnapshot(long maxAge) {
+        final ProcessSnapshot cachedSnapshot = sCachedSnapshot;
+        if (maxAge > 0 && cachedSnapshot != null
+                && System.nanoTime() - cachedSnapshot.time <= TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+            return cachedSnapshot;
+        }
+
+        ProcessSnapshot snapshot = null;
+        // with hidepid, other processes and even init are invisible to us
+        if (!new File("/proc/1/status").canRead()) {
+            snapshot = readSnapshotPerRootShell();
+        }
+        if (snapshot == null) {
+            snapshot = readSnapshotDirect();
+        }
+        sCachedSnapshot = snapshot;
+        return snapshot;
+    }
+
     public static int getUidFromPid(int pid) {
         int result = getUidFromPidPerStat(pid);
         if (result == INVALID) {
@@ -71,4 +196,317 @@ public class ProcessHelper {
 
         return INVALID;
     }
+
+    @NonNull private static ProcessSnapshot readSnapshotDirect() {
+        final long time = System.nanoTime();
+        final String[] entries = new File("/proc").list();
+        if (entries == null) {
+            return new SnapshotBuilder(0).build(time);
+        }
+
+        final int[] pids = new int[entries.length];
+        int count = 0;
+        for (final String entry : entries) {
+            final int pid = parseInt(entry, 0, entry.length());
+            if (pid > 0) {
+                pids[count++] = pid;
+            }
+        }
+        Arrays.sort(pids, 0, count);
+
+        final SnapshotBuilder builder = new SnapshotBuilder(count);
+        final byte[] buffer = new byte[STATUS_BUFFER_SIZE];
+        for (int i = 0; i < count; i++) {
+            final int length = readFile("/proc/" + pids[i] + "/status", buffer);
+            // gone already
+            if (length <= 0) {
+                continue;
+            }
+            builder.begin(pids[i]);
+            int lineStart = 0;
+            // the keys are at the top, the rest of the status is not of interest
+            while (lineStart < length && !builder.isComplete()) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && buffer[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                builder.parseStatusLine(buffer, lineStart, lineEnd);
+                lineStart = lineEnd + 1;
+            }
+            builder.commit();
+        }
+        return builder.build(time);
+    }
+
+    @Nullable private static ProcessSnapshot readSnapshotPerRootShell() {
+        final long time = System.nanoTime();
+        final SnapshotBuilder builder = new SnapshotBuilder(256);
+        // one grep for all processes, every line looks like "/proc/<pid>/status:<key>:<tab><value>"
+        final Command command = new Command("grep -e '^Name:' -e '^State:' -e '^PPid:' -e '^Uid:' /proc/[0-9]*/status")
+                .setErrorType(Command.ERROR_NONE)
+                .setOutputConsumer(new OutputConsumer() {
+                    @Override public void onOutputLine(@NonNull String line) {
+                        final int pidEnd = line.indexOf('/', 6);
+                        final int keyStart = line.indexOf(':', pidEnd) + 1;
+                        if (!line.startsWith("/proc/") || pidEnd < 0 || keyStart <= 0) {
+                            return;
+                        }
+                        final int pid = parseInt(line, 6, pidEnd);
+                        if (pid == INVALID) {
+                            return;
+                        }
+                        if (pid != builder.pid) {
+                            builder.commit();
+                            builder.begin(pid);
+                        }
+                        builder.parseStatusLine(line.substring(keyStart));
+                    }
+
+                    @Override public void onOutputEnd() { }
+                });
+        if (RootShell.fireAndForget(command) == null) {
+            return null;
+        }
+        command.waitFor();
+        if (command.isTerminated()) {
+            return null;
+        }
+        builder.commit();
+        return builder.build(time);
+    }
+
+    /**
+     * @return The amount of bytes read, or -1 if the file could not be read
+     */
+    private static int readFile(String path, byte[] buffer) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(path);
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            return length;
+        } catch (IOException | SecurityException ignored) {
+            return -1;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * @return The number in the given range, or {@link #INVALID} if it is not a positive number
+     */
+    private static int parseInt(String string, int start, int end) {
+        if (start >= end) {
+            return INVALID;
+        }
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            final char c = string.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Collects the processes into growing primitive arrays.
+     */
+    private static class SnapshotBuilder {
+        private int size;
+        private int[] pids;
+        private int[] uids;
+        private int[] parentPids;
+        private char[] states;
+        private String[] names;
+
+        // the process which is being parsed right now
+        private int pid = INVALID;
+        private int uid;
+        private int parentPid;
+        private char state;
+        private String name;
+
+        private SnapshotBuilder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            pids = new int[capacity];
+            uids = new int[capacity];
+            parentPids = new int[capacity];
+            states = new char[capacity];
+            names = new String[capacity];
+        }
+
+        private void begin(int pid) {
+            this.pid = pid;
+            this.uid = INVALID;
+            this.parentPid = INVALID;
+            this.state = '?';
+            this.name = "";
+        }
+
+        private boolean isComplete() {
+            return uid != INVALID && parentPid != INVALID && state != '?' && !name.isEmpty();
+        }
+
+        /**
+         * Same as {@link #parseStatusLine(String)}, but matches the keys against the raw bytes,
+         * so only the name gets decoded into a string.
+         */
+        private void parseStatusLine(byte[] buffer, int start, int end) {
+            if (startsWith(buffer, start, end, KEY_NAME)) {
+                final int valueStart = skipBlanks(buffer, start + KEY_NAME.length, end);
+                int valueEnd = end;
+                while (valueEnd > valueStart && isBlank(buffer[valueEnd - 1])) {
+                    valueEnd--;
+                }
+                name = new String(buffer, valueStart, valueEnd - valueStart, UTF_8);
+            } else if (startsWith(buffer, start, end, KEY_STATE)) {
+                final int valueStart = skipBlanks(buffer, start + KEY_STATE.length, end);
+                if (valueStart < end) {
+                    state = (char) buffer[valueStart];
+                }
+            } else if (startsWith(buffer, start, end, KEY_PARENT_PID)) {
+                parentPid = parseFirstInt(buffer, start + KEY_PARENT_PID.length, end);
+            } else if (startsWith(buffer, start, end, KEY_UID)) {
+                // real, effective, saved and filesystem uid, we want the real one
+                uid = parseFirstInt(buffer, start + KEY_UID.length, end);
+            }
+        }
+
+        /**
+         * @param line A line of /proc/<pid>/status, like "Uid:<tab>10102<tab>10102<tab>10102<tab>10102"
+         */
+        private void parseStatusLine(String line) {
+            if (line.startsWith("Name:")) {
+                name = line.substring(5).trim();
+            } else if (line.startsWith("State:")) {
+                final String value = line.substring(6).trim();
+                if (!value.isEmpty()) {
+                    state = value.charAt(0);
+                }
+            } else if (line.startsWith("PPid:")) {
+                parentPid = parseFirstInt(line, 5);
+            } else if (line.startsWith("Uid:")) {
+                // real, effective, saved and filesystem uid, we want the real one
+                uid = parseFirstInt(line, 4);
+            }
+        }
+
+        private void commit() {
+            if (pid == INVALID) {
+                return;
+            }
+            if (size == pids.length) {
+                final int capacity = size * 2;
+                pids = Arrays.copyOf(pids, capacity);
+                uids = Arrays.copyOf(uids, capacity);
+                parentPids = Arrays.copyOf(parentPids, capacity);
+                states = Arrays.copyOf(states, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            pids[size] = pid;
+            uids[size] = uid;
+            parentPids[size] = parentPid;
+            states[size] = state;
+            names[size] = name;
+            size++;
+            pid = INVALID;
+        }
+
+        private ProcessSnapshot build(long time) {
+            sortByPid();
+            return new ProcessSnapshot(time, size, pids, uids, parentPids, states, names);
+        }
+
+        /**
+         * The shell lists the processes in lexical order, sort them via packed pid and index pairs.
+         */
+        private void sortByPid() {
+            boolean isSorted = true;
+            for (int i = 1; i < size && isSorted; i++) {
+                isSorted = pids[i - 1] < pids[i];
+            }
+            if (isSorted) {
+                return;
+            }
+
+            final long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) pids[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            final int[] sortedUids = new int[size];
+            final int[] sortedParentPids = new int[size];
+            final char[] sortedStates = new char[size];
+            final String[] sortedNames = new String[size];
+            for (int i = 0; i < size; i++) {
+                final int index = (int) order[i];
+                pids[i] = (int) (order[i] >>> 32);
+                sortedUids[i] = uids[index];
+                sortedParentPids[i] = parentPids[index];
+                sortedStates[i] = states[index];
+                sortedNames[i] = names[index];
+            }
+            uids = sortedUids;
+            parentPids = sortedParentPids;
+            states = sortedStates;
+            names = sortedNames;
+        }
+
+        private static boolean startsWith(byte[] buffer, int start, int end, byte[] key) {
+            if (end - start < key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buffer[start + i] != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isBlank(byte b) {
+            return b == ' ' || b == '\t';
+        }
+
+        private static int skipBlanks(byte[] buffer, int start, int end) {
+            while (start < end && isBlank(buffer[start])) {
+                start++;
+            }
+            return start;
+        }
+
+        private static int parseFirstInt(byte[] buffer, int start, int end) {
+            final int i = skipBlanks(buffer, start, end);
+            if (i == end || buffer[i] < '0' || buffer[i] > '9') {
+                return INVALID;
+            }
+            int result = 0;
+            for (int j = i; j < end && buffer[j] >= '0' && buffer[j] <= '9'; j++) {
+                result = result * 10 + (buffer[j] - '0');
+            }
+            return result;
+        }
+
+        private static int parseFirstInt(String line, int start) {
+            int i = start;
+            while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+                i++;
+            }
+            int end = i;
+            while (end < line.length() && line.charAt(end) >= '0' && line.charAt(end) <= '9') {
+                end++;
+            }
+            return parseInt(line, i, end);
+        }
+    }
 }